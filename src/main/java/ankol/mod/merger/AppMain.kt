@@ -124,6 +124,9 @@ class AppMain {
             argParser.addOption("b", "base", true, Localizations.t("APP_MAIN_OPTION_BASE_DESC"))
             argParser.addOption("h", "help", false, Localizations.t("APP_MAIN_OPTION_HELP_DESC"))
             argParser.addOption("f", "fix", false, Localizations.t("STRATEGYS_GLOBAL_FIX_ENABLE"))
+            argParser.addOption("v", "verify", false, Localizations.t("APP_MAIN_OPTION_VERIFY_DESC"))
+            argParser.addOption("i", "incremental", false, Localizations.t("APP_MAIN_OPTION_INCREMENTAL_DESC"))
+            argParser.addOption("t", "threads", true, Localizations.t("APP_MAIN_OPTION_THREADS_DESC"))
             return argParser
         }
 
@@ -5,18 +5,58 @@ import ankol.mod.merger.merger.MergeResult
 
 /**
  * 文件合并器通用接口
- * 
- * @param context 当前执行合并逻辑的上下文信息
+ *
  * 定义了所有文件类型合并器必须实现的方法。
  * 每个实现类负责处理一种特定的文件类型（如.scr, .xml等）。
+ * 实现类不允许保存单次合并的状态（状态放在 [MergeSession] 中），以便在多个线程之间共享同一个实例。
  */
-abstract class AbstractFileMerger(var context: MergerContext) {
+abstract class AbstractFileMerger {
     /**
      * 合并两个文件。
-     * 
+     *
      * @param file1 第一个文件（来自Mod1）的路径。
      * @param file2 第二个文件（来自Mod2）的路径。
+     * @param context 当前执行合并逻辑的上下文信息
      * @return 一个包含合并后内容和冲突信息的 [MergeResult] 对象。
      */
-    abstract fun merge(file1: AbstractFileTree, file2: AbstractFileTree): MergeResult
-}
\ No newline at end of file
+    fun merge(file1: AbstractFileTree, file2: AbstractFileTree, context: MergerContext): MergeResult {
+        return mergeAll(file1, listOf(file2), context)
+    }
+
+    /**
+     * 多路合并：以 [base] 为基准，按顺序合并所有MOD版本。
+     *
+     * 基准文件与每个MOD版本都只解析一次，合并结果在最后一次性生成，不会重新解析中间结果。
+     * 每一轮对比前通过 [prepareStep] 设置上下文中的MOD名称。
+     *
+     * @param base 基准文件（data0.pak中的原版文件，或者第一个MOD的文件）
+     * @param mods 按合并顺序排列的MOD文件
+     * @param context 当前执行合并逻辑的上下文信息，[MergerContext.isFirstModMergeWithBaseMod] 表示 [base] 是否为原版文件
+     * @return 一个包含合并后内容和冲突信息的 [MergeResult] 对象。
+     */
+    abstract fun mergeAll(base: AbstractFileTree, mods: List<AbstractFileTree>, context: MergerContext): MergeResult
+
+    /**
+     * 预热解析器，解析一份内置的样例文件以提前填充共享的 DFA 缓存（见 [ParserRuntime]）
+     */
+    open fun warmUp() {
+    }
+
+    /**
+     * 设置第 [index] 轮对比的上下文：前一个版本与当前MOD的名称，只有第一轮可能是与原版文件的对比
+     *
+     * @param baseIsOriginal [base] 是否为原版文件
+     */
+    protected fun prepareStep(
+        context: MergerContext,
+        base: AbstractFileTree,
+        mods: List<AbstractFileTree>,
+        index: Int,
+        baseIsOriginal: Boolean
+    ) {
+        val previous = if (index == 0) base else mods[index - 1]
+        context.mod1Name = previous.getFirstArchiveFileName()
+        context.mod2Name = mods[index].getFirstArchiveFileName()
+        context.isFirstModMergeWithBaseMod = index == 0 && baseIsOriginal
+    }
+}
@@ -0,0 +1,214 @@
+package ankol.mod.merger.core
+
+import ankol.mod.merger.tools.CentralDirectoryReader
+import ankol.mod.merger.tools.PakIndex
+import ankol.mod.merger.tools.Tools
+import ankol.mod.merger.tools.logger
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.security.MessageDigest
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.io.path.*
+import kotlin.math.min
+
+/**
+ * 基准MOD持久化缓存
+ *
+ * 使用基准MOD的文件大小、修改时间和中央目录的hash值作为缓存键，保存文件索引以及解析后的原版语法树。
+ * 游戏文件没有变化时，再次合并不需要重新扫描中央目录，也不需要重新解析原版文件。
+ *
+ * @param baseModPath 基准MOD路径
+ * @param cacheRoot 缓存根目录，每个版本的基准MOD在其中对应一个子目录
+ * @author Ankol
+ */
+class BaseModCache(private val baseModPath: Path, private val cacheRoot: Path) {
+    companion object {
+        /**
+         * 缓存格式版本，修改缓存格式、语法树结构或者签名规则后需要递增，使旧的缓存失效
+         */
+        private const val CACHE_VERSION = 3
+
+        /**
+         * 最多保留的缓存数量（包括当前基准MOD的缓存），在多个游戏版本之间切换时不需要每次重建缓存
+         */
+        private const val MAX_CACHES = 3
+
+        private const val INDEX_FILE_NAME = "index.bin"
+        private const val TREE_DIR_NAME = "trees"
+    }
+
+    private val log = logger()
+
+    /**
+     * 当前基准MOD对应的缓存目录
+     */
+    private val cacheDir: Path = cacheRoot.resolve(computeCacheKey())
+
+    init {
+        cacheDir.resolve(TREE_DIR_NAME).createDirectories()
+        // 修改时间作为最近一次使用的时间，清理时保留最近使用的缓存
+        cacheDir.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis()))
+        removeStaleCaches()
+    }
+
+    /**
+     * 读取缓存的文件索引
+     *
+     * @return 基准MOD的索引，缓存不存在或已损坏时返回null
+     */
+    fun loadIndex(): PakIndex? {
+        val indexFile = cacheDir.resolve(INDEX_FILE_NAME)
+        if (indexFile.notExists()) {
+            return null
+        }
+        return try {
+            openInput(indexFile).use { input ->
+                val directories = Array(input.readInt()) { input.readUTF() }
+                val count = input.readInt()
+                val builder = PakIndex.Builder(baseModPath, count)
+                repeat(count) {
+                    builder.add(
+                        directories[input.readInt()],
+                        input.readUTF(),
+                        input.readLong(),
+                        input.readLong(),
+                        input.readLong(),
+                        input.readInt(),
+                        input.readLong(),
+                        input.readInt()
+                    )
+                }
+                builder.build()
+            }
+        } catch (e: Exception) {
+            log.warn("Failed to read base mod index cache, rebuilding. Reason: {}", e.message)
+            null
+        }
+    }
+
+    /**
+     * 保存文件索引
+     */
+    fun saveIndex(index: PakIndex) {
+        writeAtomically(cacheDir.resolve(INDEX_FILE_NAME)) { output ->
+            output.writeInt(index.directories.size)
+            index.directories.forEach { output.writeUTF(it) }
+            output.writeInt(index.size)
+            for (i in 0 until index.size) {
+                output.writeInt(index.directoryIds[i])
+                output.writeUTF(index.fileNames[i])
+                output.writeLong(index.localHeaderOffsets[i])
+                output.writeLong(index.compressedSizes[i])
+                output.writeLong(index.sizes[i])
+                output.writeInt(index.methods[i])
+                output.writeLong(index.crcs[i])
+                output.writeInt(index.flags[i])
+            }
+        }
+    }
+
+    /**
+     * 读取缓存的原版语法树
+     *
+     * @param fileEntryName 文件在基准MOD中的全路径
+     * @return 解析结果，缓存不存在或已损坏时返回null
+     */
+    fun loadTree(fileEntryName: String): ParsedResult<BaseTreeNode>? {
+        val treeFile = treeFileOf(fileEntryName)
+        if (treeFile.notExists()) {
+            return null
+        }
+        return try {
+            openInput(treeFile).use { ParsedResultSerializer.read(it) }
+        } catch (e: Exception) {
+            log.warn("Failed to read cached tree of '{}', reparsing. Reason: {}", fileEntryName, e.message)
+            null
+        }
+    }
+
+    /**
+     * 保存原版语法树
+     *
+     * @param fileEntryName 文件在基准MOD中的全路径
+     * @param content 解析使用的原始文本
+     * @param result 解析结果
+     */
+    fun saveTree(fileEntryName: String, content: String, result: ParsedResult<*>) {
+        writeAtomically(treeFileOf(fileEntryName)) { ParsedResultSerializer.write(it, content, result) }
+    }
+
+    private fun treeFileOf(fileEntryName: String): Path {
+        val digest = MessageDigest.getInstance("SHA-1").digest(fileEntryName.lowercase().toByteArray(Charsets.UTF_8))
+        return cacheDir.resolve(TREE_DIR_NAME).resolve(Tools.bytesToHex(digest) + ".bin")
+    }
+
+    /**
+     * 先写入临时文件再原子替换，多个线程同时写入或者中途退出都不会留下损坏的缓存文件
+     */
+    private fun writeAtomically(target: Path, writer: (DataOutputStream) -> Unit) {
+        val tempFile = Files.createTempFile(target.parent, target.fileName.toString(), ".tmp")
+        try {
+            DataOutputStream(GZIPOutputStream(BufferedOutputStream(tempFile.outputStream()))).use(writer)
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            log.warn("Failed to write cache file '{}'. Reason: {}", target, e.message)
+        } finally {
+            tempFile.deleteIfExists()
+        }
+    }
+
+    private fun openInput(file: Path): DataInputStream {
+        return DataInputStream(GZIPInputStream(BufferedInputStream(file.inputStream())))
+    }
+
+    /**
+     * 删除最近没有使用的缓存，包括当前基准MOD在内只保留最近使用的 [MAX_CACHES] 个
+     */
+    private fun removeStaleCaches() {
+        cacheRoot.listDirectoryEntries()
+            .filter { it.isDirectory() && it.fileName != cacheDir.fileName }
+            .sortedByDescending { it.getLastModifiedTime() }
+            .drop(MAX_CACHES - 1)
+            .forEach { Tools.deleteRecursively(it) }
+    }
+
+    /**
+     * 计算缓存键：缓存版本 + 文件大小 + 修改时间 + 中央目录hash
+     * 中央目录记录了所有条目的名称、CRC和位置，只要其中任一条目变化，缓存键都会不同
+     */
+    private fun computeCacheKey(): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val header = ByteBuffer.allocate(Int.SIZE_BYTES + Long.SIZE_BYTES * 2)
+            .putInt(CACHE_VERSION)
+            .putLong(baseModPath.fileSize())
+            .putLong(baseModPath.getLastModifiedTime().toMillis())
+        digest.update(header.array())
+        FileChannel.open(baseModPath).use { channel -> digestCentralDirectory(channel, digest) }
+        return Tools.bytesToHex(digest.digest()).substring(0, 32)
+    }
+
+    /**
+     * 计算中央目录的hash
+     */
+    private fun digestCentralDirectory(channel: FileChannel, digest: MessageDigest) {
+        val location = CentralDirectoryReader.locate(channel, baseModPath)
+        val buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE * 8)
+        var position = location.offset
+        val end = location.offset + location.size
+        while (position < end) {
+            buffer.clear().limit(min(buffer.capacity().toLong(), end - position).toInt())
+            val read = channel.read(buffer, position)
+            if (read == -1) {
+                throw IOException("Unexpected end of file while reading central directory of: $baseModPath")
+            }
+            digest.update(buffer.array(), 0, read)
+            position += read
+        }
+    }
+}
@@ -3,18 +3,25 @@ package ankol.mod.merger.core
 import ankol.mod.merger.core.filetrees.PathFileTree
 import ankol.mod.merger.tools.ColorPrinter
 import ankol.mod.merger.tools.Localizations
+import ankol.mod.merger.tools.PakIndex
 import ankol.mod.merger.tools.Tools
 import ankol.mod.merger.tools.Tools.getEntryFileName
 import ankol.mod.merger.tools.Tools.indexPakFile
+import ankol.mod.merger.tools.logger
 import org.apache.commons.compress.archivers.zip.ZipFile
 import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.nio.file.Files
 import java.nio.file.Path
 import java.security.DigestInputStream
 import java.security.MessageDigest
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
 import java.util.function.Function
-import kotlin.io.path.createDirectories
 
 /**
  * 基准MOD管理器
@@ -26,12 +33,19 @@ class BaseModManager(
     tempDir: Path,
     private val baseModPath: Path
 ) {
+    companion object {
+        /**
+         * 内容缓存的上限（字符数），超出后淘汰最久未使用的文件
+         */
+        private const val MAX_CONTENT_CACHE_SIZE = 64L * 1024 * 1024
+    }
+
+    private val log = logger()
+
     /**
-     * 文件名 → 标准路径的映射
-     * 键：文件名（小写）
-     * 值：在基准MOD中的相对路径
+     * 基准MOD的文件索引，可以按文件名查找其在基准MOD中的相对路径
      */
-    var indexedBaseModFileMap: MutableMap<String, PathFileTree> = mutableMapOf()
+    private lateinit var pakIndex: PakIndex
 
     /**
      * 基准MOD是否已加载
@@ -39,25 +53,50 @@ class BaseModManager(
     var loaded = false
 
     /**
-     * 临时文件缓存目录
+     * 持久化缓存根目录
+     */
+    private val cacheRoot: Path = tempDir.resolveSibling("SuperModMergerCache")
+
+    /**
+     * 原版语法树缓存，值为解析任务，同一个文件被多个线程同时请求时只会解析一次
+     */
+    private val baseTreeCache = ConcurrentHashMap<String, CompletableFuture<ParsedResult<*>?>>()
+
+    /**
+     * 原版文件内容缓存（按访问顺序排列的LinkedHashMap，即LRU），键为文件在基准MOD中的全路径
+     * 访问时需要持有自身的锁
+     */
+    private val contentCache = LinkedHashMap<String, String>(16, 0.75f, true)
+
+    /**
+     * 内容缓存当前占用的字符数
+     */
+    private var contentCacheSize = 0L
+
+    /**
+     * 条目位置 -> 文件内容的SHA-256
      */
-    private val cacheDir: Path = tempDir.resolve("BaseModCache_" + System.currentTimeMillis())
+    private val fileHashCache = ConcurrentHashMap<Int, String>()
 
-    private val baseTreeCache = HashMap<String, ParsedResult<*>?>()
+    /**
+     * 持久化缓存（文件索引与原版语法树），初始化失败时为null，不影响正常合并
+     */
+    private var persistentCache: BaseModCache? = null
 
     /**
-     * 复用的 ZipFile 连接，避免频繁打开关闭
+     * 共享的基准MOD文件通道，所有线程通过定位读取（positional read）同时读取不同的条目
      */
-    private lateinit var zipFileConnection: ZipFile
+    @Volatile
+    private var baseModChannel: FileChannel? = null
+
+    /**
+     * 复用的 ZipFile 连接，只有不支持直接读取的条目才会打开
+     */
+    private var zipFileConnection: ZipFile? = null
 
     //初始化逻辑
     init {
-        try {
-            load()
-            cacheDir.createDirectories()
-        } catch (e: IOException) {
-            ColorPrinter.warning("Failed to create base mod cache directory: " + e.message)
-        }
+        load()
     }
 
     /**
@@ -74,17 +113,38 @@ class BaseModManager(
 
         try {
             val startTime = System.currentTimeMillis()
-            this.indexedBaseModFileMap = indexPakFile(baseModPath) //这里构建的索引MAP里还没有真正解压出来文件
-            zipFileConnection = ZipFile.builder().setPath(baseModPath).get() //建立ZipFile连接，使用完成后关闭
+            persistentCache = createPersistentCache()
+            val cachedIndex = persistentCache?.loadIndex()
+            if (cachedIndex != null) {
+                this.pakIndex = cachedIndex
+                loaded = true
+                val timetake = System.currentTimeMillis() - startTime
+                ColorPrinter.success(Localizations.t("BASE_MOD_INDEX_LOADED_FROM_CACHE", pakIndex.size, baseModPath.fileName, timetake))
+                return
+            }
+            this.pakIndex = indexPakFile(baseModPath) //索引中只记录了条目的位置，还没有真正解压出来文件
+            persistentCache?.saveIndex(pakIndex)
 
             loaded = true
             val timetake = System.currentTimeMillis() - startTime
-            ColorPrinter.success(Localizations.t("BASE_MOD_INDEXED_FILES", indexedBaseModFileMap.size, baseModPath.fileName, timetake))
+            ColorPrinter.success(Localizations.t("BASE_MOD_INDEXED_FILES", pakIndex.size, baseModPath.fileName, timetake))
         } catch (e: Exception) {
             throw RuntimeException(e)
         }
     }
 
+    /**
+     * 创建持久化缓存，缓存目录不在临时目录中，不会在合并结束后被清理
+     */
+    private fun createPersistentCache(): BaseModCache? {
+        return try {
+            BaseModCache(baseModPath, cacheRoot)
+        } catch (e: Exception) {
+            log.warn("Failed to initialize base mod cache, caching disabled. Reason: {}", e.message)
+            null
+        }
+    }
+
     /**
      * 从基准MOD中提取指定文件的内容（带缓存优化）
      * 
@@ -98,23 +158,94 @@ class BaseModManager(
 
         // 规范化路径（统一使用小写文件名查找）
         val fileName = getEntryFileName(relPath).lowercase(Locale.getDefault())
-        val pathFileTree = indexedBaseModFileMap[fileName] ?: return null
+        val position = pakIndex.findByFileName(fileName)
+        if (position < 0) {
+            return null
+        }
 
-        val fullPathName = pathFileTree.fullPathName
-        if (fullPathName != null) {
-            return Files.readString(fullPathName, Charsets.UTF_8)
+        val fileEntryName = pakIndex.entryName(position)
+        synchronized(contentCache) {
+            contentCache[fileEntryName]?.let { return it }
         }
 
-        //没有初始化内容，从压缩包里提取出来
-        val fileEntryName = pathFileTree.fileEntryName
-        val (filePath, fileHash) = extractFileFromPak(fileEntryName) //todo 这里可以考虑改为读取的内容就保存到内存里，不要每次都去硬盘读了
-        pathFileTree.fullPathName = filePath
-        pathFileTree.fileHash = fileHash
-        //返回的hash值为空，说明文件大小为0
-        if (fileHash.isEmpty()) {
+        //直接在内存中解压，不再写入临时文件。与 Files.readString 一致，内容不是合法的UTF-8时报错
+        val bytes = openEntryStream(position).use { it.readAllBytes() }
+        val content = Charsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString()
+        //文件大小为0
+        if (content.isEmpty()) {
             return null
         }
-        return Files.readString(filePath)
+        cacheContent(fileEntryName, content)
+        return content
+    }
+
+    /**
+     * 获取文件在基准MOD中记录的CRC-32校验值，不需要解压
+     *
+     * @param relPath 文件在基准MOD中的相对路径
+     * @return CRC-32校验值，如果文件不存在返回null
+     */
+    fun getFileCrc(relPath: String): Long? {
+        if (!loaded) {
+            return null
+        }
+        val position = pakIndex.findByFileName(getEntryFileName(relPath).lowercase(Locale.getDefault()))
+        return if (position < 0) null else pakIndex.crcs[position]
+    }
+
+    /**
+     * 判断MOD中的文件是否与基准MOD中的同名文件完全一致
+     *
+     * 先比较大小和CRC-32（都来自压缩包目录，不需要解压），CRC未知或者需要确认时再比较SHA-256
+     *
+     * @param relPath 文件在基准MOD中的相对路径
+     * @param fileTree MOD中的文件
+     * @param verifyHash CRC相同时是否再用SHA-256确认
+     * @return 是否一致，基准MOD中不存在该文件时返回false
+     */
+    fun isIdenticalToBase(relPath: String, fileTree: PathFileTree, verifyHash: Boolean): Boolean {
+        if (!loaded) {
+            return false
+        }
+        val position = pakIndex.findByFileName(getEntryFileName(relPath).lowercase(Locale.getDefault()))
+        if (position < 0 || pakIndex.sizes[position] != fileTree.getSize()) {
+            return false
+        }
+        val crc = fileTree.getCrc()
+        if (crc != null) {
+            if (crc != pakIndex.crcs[position]) {
+                return false //CRC不同，内容一定不同
+            }
+            if (!verifyHash) {
+                return true
+            }
+        }
+        return fileTree.getOrComputeHash() == getFileHash(position)
+    }
+
+    /**
+     * 计算基准MOD中条目的SHA-256，结果会被缓存
+     */
+    private fun getFileHash(position: Int): String {
+        return fileHashCache.computeIfAbsent(position) {
+            val digest = MessageDigest.getInstance("SHA-256")
+            DigestInputStream(openEntryStream(position), digest).use { it.transferTo(OutputStream.nullOutputStream()) }
+            Tools.bytesToHex(digest.digest())
+        }
+    }
+
+    /**
+     * 将文件内容放入LRU缓存，缓存占用超出上限时从最久未使用的文件开始淘汰
+     */
+    private fun cacheContent(fileEntryName: String, content: String) = synchronized(contentCache) {
+        contentCache.put(fileEntryName, content)?.let { contentCacheSize -= it.length }
+        contentCacheSize += content.length
+        val iterator = contentCache.values.iterator()
+        //至少保留刚放入的文件
+        while (contentCacheSize > MAX_CONTENT_CACHE_SIZE && contentCache.size > 1) {
+            contentCacheSize -= iterator.next().length
+            iterator.remove()
+        }
     }
 
     /**
@@ -127,9 +258,12 @@ class BaseModManager(
             return false
         }
         val fileName = getEntryFileName(filePath)
-        val pathFileTree = indexedBaseModFileMap[fileName] ?: return false
+        val position = pakIndex.findByFileName(fileName)
+        if (position < 0) {
+            return false
+        }
         //有时会有一些不属于mod的文件被加入到pak中，这里查到空后说明不是原版mod支持修改的文件.
-        val correctPath = pathFileTree.fileEntryName
+        val correctPath = pakIndex.entryName(position)
         return !correctPath.equals(filePath, ignoreCase = true)
     }
 
@@ -144,7 +278,8 @@ class BaseModManager(
             return null
         }
         val fileName = getEntryFileName(filePath)
-        return indexedBaseModFileMap[fileName]?.fileEntryName
+        val position = pakIndex.findByFileName(fileName)
+        return if (position < 0) null else pakIndex.entryName(position)
     }
 
     /**
@@ -159,51 +294,78 @@ class BaseModManager(
         fileEntryName: String,
         function: Function<String, ParsedResult<T>>
     ): ParsedResult<T>? {
-        return baseTreeCache.computeIfAbsent(fileEntryName) {
-            val content = extractFileContent(fileEntryName) ?: return@computeIfAbsent null
-            function.apply(content)
-        } as ParsedResult<T>?
+        val task = CompletableFuture<ParsedResult<*>?>()
+        //其他线程已经在解析（或已解析完成）这个文件，等待其结果即可
+        baseTreeCache.putIfAbsent(fileEntryName, task)?.let { return it.join() as ParsedResult<T>? }
+        try {
+            task.complete(loadOrParseTree(fileEntryName, function))
+        } catch (e: Exception) {
+            //解析失败时移除任务，允许之后重新尝试
+            baseTreeCache.remove(fileEntryName, task)
+            task.completeExceptionally(e)
+            throw e
+        }
+        return task.join() as ParsedResult<T>?
     }
 
     /**
-     * 清理临时文件缓存并关闭 ZipFile 连接
+     * 优先从持久化缓存读取语法树，不存在时解析并写入缓存
+     */
+    private fun <T : BaseTreeNode> loadOrParseTree(
+        fileEntryName: String,
+        function: Function<String, ParsedResult<T>>
+    ): ParsedResult<*>? {
+        persistentCache?.loadTree(fileEntryName)?.let { return it }
+        val content = extractFileContent(fileEntryName) ?: return null
+        val result = function.apply(content)
+        persistentCache?.saveTree(fileEntryName, content, result)
+        return result
+    }
+
+    /**
+     * 清理内存缓存并关闭 ZipFile 连接
      * 建议在合并完成后调用此方法释放资源
      */
     fun close() {
-        // 关闭 ZipFile 连接
+        // 关闭文件通道与 ZipFile 连接
         try {
-            zipFileConnection.close()
+            baseModChannel?.close()
+            zipFileConnection?.close()
         } catch (e: IOException) {
             ColorPrinter.warning("Failed to close ZipFile connection: " + e.message)
         }
 
-        // 清理临时文件缓存
-        Tools.deleteRecursively(cacheDir)
         baseTreeCache.clear()
+        synchronized(contentCache) {
+            contentCache.clear()
+            contentCacheSize = 0
+        }
     }
 
     /**
-     * 从PAK文件中提取指定文件的内容
-     * @return 包含了文件路径和hash的Pair
-     */
-    private fun extractFileFromPak(fileEntryName: String): Pair<Path, String> {
-        val zipFile = zipFileConnection
-        val digest = MessageDigest.getInstance("SHA-256")
-        val entry = zipFile.getEntry(fileEntryName)
-        val outputPath = cacheDir.resolve(fileEntryName)
-        outputPath.parent.createDirectories()
-        //大小为0
-        if (entry.size == 0L) {
-            Files.createFile(outputPath)
-            return Pair(outputPath, "")
-        } else {
-            zipFile.getInputStream(entry).use { zin ->
-                DigestInputStream(zin, digest).use { din ->
-                    Files.copy(din, outputPath)
-                }
-            }
+     * 打开基准MOD中条目的输入流
+     * 优先按索引中记录的位置直接读取，条目不支持直接读取时才打开ZipFile
+     */
+    private fun openEntryStream(position: Int): InputStream {
+        pakIndex.entrySource(position)?.let { return it.openStream(getBaseModChannel()) }
+        val zipFile = getZipFileConnection()
+        return zipFile.getInputStream(zipFile.getEntry(pakIndex.entryName(position)))
+    }
+
+    /**
+     * 获取共享的文件通道
+     * 读取中的线程被中断时通道会被关闭，这种情况下重新打开
+     */
+    private fun getBaseModChannel(): FileChannel {
+        baseModChannel?.takeIf { it.isOpen }?.let { return it }
+        synchronized(this) {
+            baseModChannel?.takeIf { it.isOpen }?.let { return it }
+            return FileChannel.open(baseModPath).also { baseModChannel = it }
         }
-        val fileHash = Tools.bytesToHex(digest.digest())
-        return Pair(outputPath, fileHash)
+    }
+
+    @Synchronized
+    private fun getZipFileConnection(): ZipFile {
+        return zipFileConnection ?: ZipFile.builder().setPath(baseModPath).get().also { zipFileConnection = it }
     }
 }
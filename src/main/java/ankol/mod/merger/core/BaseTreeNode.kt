@@ -5,7 +5,7 @@ import org.antlr.v4.runtime.misc.Interval
 
 /**
  * 基础树节点
- * @param signature 当前节点签名（确保在同一树层级下保持唯一，方便进行多文件对比）
+ * @param signature 当前节点签名（确保在同一树层级下保持唯一，方便进行多文件对比），统一使用 [SignatureInterner] 中的实例
  * @param startTokenIndex 当前节点起始TOKEN索引
  * @param stopTokenIndex 当前节点结束TOKEN索引
  * @param lineNumber 当前行号
@@ -13,25 +13,60 @@ import org.antlr.v4.runtime.misc.Interval
  * @author Ankol
  */
 abstract class BaseTreeNode(
-    var signature: String,
+    signature: String,
     val startTokenIndex: Int,
     val stopTokenIndex: Int,
     val lineNumber: Int,
     @field:Transient
     val tokenStream: TokenStream
 ) {
-    private val _sourceText: String by lazy {
-        val startIndex = tokenStream.get(startTokenIndex).startIndex
-        val stopIndex = tokenStream.get(stopTokenIndex).stopIndex
-//        calcCount++
-        return@lazy tokenStream.tokenSource.inputStream.getText(Interval(startIndex, stopIndex))
-    }
+    var signature: String = SignatureInterner.intern(signature)
+        set(value) {
+            field = SignatureInterner.intern(value)
+        }
+
+    /**
+     * 上一级节点（容器、数组或者键值对），根节点为null
+     */
+    var parent: BaseTreeNode? = null
 
+    private var contentHashCache = 0L
+
+    /**
+     * 节点内容的哈希（Merkle哈希），容器节点的哈希由子节点的哈希组合而成
+     *
+     * 哈希与合并器对比节点时的相等规则一致，哈希相同即视为整棵子树相同，对比时可以直接跳过。
+     * 第一次访问时计算并缓存，节点所在的语法树在合并中被修改后缓存的哈希不再可靠，由 [MergedDocument.isUnchanged] 判断
+     */
+    val contentHash: Long
+        get() {
+            var hash = contentHashCache
+            if (hash == 0L) {
+                hash = computeContentHash()
+                contentHashCache = hash
+            }
+            return hash
+        }
+
+    /**
+     * 节点对应的原始文本（包含空白和注释）
+     *
+     * 每次访问时从字符流中截取，不在节点上缓存，避免缓存的语法树长期持有大量文本副本
+     */
     val sourceText: String
         get() {
-            return _sourceText
+            val startIndex = tokenStream.get(startTokenIndex).startIndex
+            val stopIndex = tokenStream.get(stopTokenIndex).stopIndex
+            return tokenStream.tokenSource.inputStream.getText(Interval(startIndex, stopIndex))
         }
 
+    /**
+     * 计算节点内容的哈希，默认使用节点的原始文本
+     */
+    protected open fun computeContentHash(): Long {
+        return ContentHash.text(javaClass, sourceText)
+    }
+
     /**
      * 打印树节点
      */
@@ -15,86 +15,130 @@ import ankol.mod.merger.tools.Localizations
 object ConflictResolver {
     /**
      * 交互式解决冲突
+     *
+     * 文件是并行合并的，同一时间只允许一个文件向用户提问，其余需要提问的线程在此排队
      * 
      * @param conflicts 冲突项目
      */
+    @Synchronized
     fun resolveConflict(conflicts: MutableList<ConflictRecord>) {
         //筛选出智能合并的节点
         val automaticMerge = handleAutoMergingCode(conflicts)
         //对于真正的冲突项，提示用户选择使用哪一个版本解决
         if (!conflicts.isEmpty()) {
-            println() //换行
-            ColorPrinter.warning(Localizations.t("CRESOLVER_CONFLICT_DETECTED", conflicts.size))
+            askUser(conflicts)
+        }
+        //最后把自动合并的节点加回去，让后续处理合并的逻辑使用同一个容器
+        conflicts.addAll(automaticMerge)
+    }
+
+    /**
+     * 批量解决冲突：所有文件合并完成后统一提示用户
+     *
+     * 冲突按文件以及MOD组合分组，每组的提示与合并过程中询问时相同，"全部使用"只作用于当前分组。
+     * 输入无效的冲突保留base的版本，与合并过程中询问时一致
+     *
+     * @param conflicts 需要用户选择的冲突，按文件排序
+     */
+    fun resolveBatch(conflicts: List<ConflictRecord>) {
+        if (conflicts.isEmpty()) {
+            return
+        }
+        val groups = conflicts.groupBy { Triple(it.fileName, it.baseModName, it.mergeModName) }
+        println()
+        ColorPrinter.warning(
+            Localizations.t("CRESOLVER_BATCH_TITLE", conflicts.size, conflicts.distinctBy { it.fileName }.size)
+        )
+        for ((group, records) in groups) {
+            val (fileName, baseModName, mergeModName) = group
+            ColorPrinter.bold(Localizations.t("CRESOLVER_BATCH_GROUP", fileName, baseModName, mergeModName, records.size))
+            askUser(records)
+            for (record in records) {
+                if (record.userChoice == null) {
+                    record.userChoice = UserChoice.BASE_MOD
+                }
+            }
+        }
+    }
 
-            var userChose: UserChoice? = null //用户选择项
-            for (i in conflicts.indices) {
-                val record = conflicts[i]
+    /**
+     * 逐个提示用户选择冲突的解决方式，选择"全部使用"后同一批的剩余冲突不再询问
+     */
+    private fun askUser(conflicts: List<ConflictRecord>) {
+        println() //换行
+        ColorPrinter.warning(Localizations.t("CRESOLVER_CONFLICT_DETECTED", conflicts.size))
+
+        var userChose: UserChoice? = null //用户选择项
+        for (i in conflicts.indices) {
+            val record = conflicts[i]
 
-                if (userChose == UserChoice.USE_ALL_BASE) {
-                    record.userChoice = UserChoice.BASE_MOD //3表示用户全部选择baseMod的配置来处理
-                } else if (userChose == UserChoice.USE_ALL_MERGE) {
-                    record.userChoice = UserChoice.MERGE_MOD //4表示用户全部选择mergeMod的配置来处理
+            if (userChose == UserChoice.USE_ALL_BASE) {
+                record.userChoice = UserChoice.BASE_MOD //3表示用户全部选择baseMod的配置来处理
+            } else if (userChose == UserChoice.USE_ALL_MERGE) {
+                record.userChoice = UserChoice.MERGE_MOD //4表示用户全部选择mergeMod的配置来处理
+            } else {
+                val baseNodeSource = record.baseNode.sourceText.trim()
+
+                // 根据冲突类型显示不同的提示
+                if (record.conflictType == ConflictType.REMOVAL) {
+                    // 删除类型冲突的特殊显示
+                    ColorPrinter.blue("=".repeat(75))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_FILE_INFO", i + 1, conflicts.size, record.fileName))
+                    ColorPrinter.warning(Localizations.t("CRESOLVER_REMOVAL_DETECTED"))
+                    ColorPrinter.warning(Localizations.t("CRESOLVER_MOD_VERSION_1", record.baseModName))
+                    ColorPrinter.bold(
+                        Localizations.t("CRESOLVER_LINE_INFO", record.baseNode.lineNumber, baseNodeSource)
+                    )
+                    ColorPrinter.warning(Localizations.t("CRESOLVER_REMOVAL_MOD_VERSION_2", record.mergeModName))
+                    ColorPrinter.blue("=".repeat(75))
+                    // 删除类型的选择对话框
+                    ColorPrinter.bold(Localizations.t("CRESOLVER_CHOOSE_PROMPT"))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_REMOVAL_OPTION_1", baseNodeSource))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_REMOVAL_OPTION_2"))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_1", record.baseModName))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_2", record.mergeModName))
                 } else {
-                    val baseNodeSource = record.baseNode.sourceText.trim()
+                    // 普通修改冲突的显示
+                    val modNodeSource = record.modNode?.sourceText?.trim() ?: ""
+                    ColorPrinter.blue("=".repeat(75))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_FILE_INFO", i + 1, conflicts.size, record.fileName))
+                    ColorPrinter.warning(Localizations.t("CRESOLVER_MOD_VERSION_1", record.baseModName))
+                    ColorPrinter.bold(
+                        Localizations.t("CRESOLVER_LINE_INFO", record.baseNode.lineNumber, baseNodeSource)
+                    )
+                    ColorPrinter.warning(Localizations.t("CRESOLVER_MOD_VERSION_2", record.mergeModName))
+                    ColorPrinter.bold(
+                        Localizations.t("CRESOLVER_LINE_INFO", record.modNode?.lineNumber ?: 0, modNodeSource)
+                    )
+                    ColorPrinter.blue("=".repeat(75))
+                    //选择对话框
+                    ColorPrinter.bold(Localizations.t("CRESOLVER_CHOOSE_PROMPT"))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_OPTION_1", baseNodeSource))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_OPTION_2", modNodeSource))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_1", record.baseModName))
+                    ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_2", record.mergeModName))
+                }
 
-                    // 根据冲突类型显示不同的提示
-                    if (record.conflictType == ConflictType.REMOVAL) {
-                        // 删除类型冲突的特殊显示
-                        ColorPrinter.blue("=".repeat(75))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_FILE_INFO", i + 1, conflicts.size, record.fileName))
-                        ColorPrinter.warning(Localizations.t("CRESOLVER_REMOVAL_DETECTED"))
-                        ColorPrinter.warning(Localizations.t("CRESOLVER_MOD_VERSION_1", record.baseModName))
-                        ColorPrinter.bold(
-                            Localizations.t("CRESOLVER_LINE_INFO", record.baseNode.lineNumber, baseNodeSource)
-                        )
-                        ColorPrinter.warning(Localizations.t("CRESOLVER_REMOVAL_MOD_VERSION_2", record.mergeModName))
-                        ColorPrinter.blue("=".repeat(75))
-                        // 删除类型的选择对话框
-                        ColorPrinter.bold(Localizations.t("CRESOLVER_CHOOSE_PROMPT"))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_REMOVAL_OPTION_1", baseNodeSource))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_REMOVAL_OPTION_2"))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_1", record.baseModName))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_2", record.mergeModName))
+                while (true) {
+                    val input = readln()
+                    val choice = findByOrder(input.toIntOrNull())
+                    if (choice == null) {
+                        ColorPrinter.warning(Localizations.t("CRESOLVER_INVALID_INPUT"))
+                        break
                     } else {
-                        // 普通修改冲突的显示
-                        val modNodeSource = record.modNode?.sourceText?.trim() ?: ""
-                        ColorPrinter.blue("=".repeat(75))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_FILE_INFO", i + 1, conflicts.size, record.fileName))
-                        ColorPrinter.warning(Localizations.t("CRESOLVER_MOD_VERSION_1", record.baseModName))
-                        ColorPrinter.bold(
-                            Localizations.t("CRESOLVER_LINE_INFO", record.baseNode.lineNumber, baseNodeSource)
-                        )
-                        ColorPrinter.warning(Localizations.t("CRESOLVER_MOD_VERSION_2", record.mergeModName))
-                        ColorPrinter.bold(
-                            Localizations.t("CRESOLVER_LINE_INFO", record.modNode?.lineNumber ?: 0, modNodeSource)
-                        )
-                        ColorPrinter.blue("=".repeat(75))
-                        //选择对话框
-                        ColorPrinter.bold(Localizations.t("CRESOLVER_CHOOSE_PROMPT"))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_OPTION_1", baseNodeSource))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_OPTION_2", modNodeSource))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_1", record.baseModName))
-                        ColorPrinter.cyan(Localizations.t("CRESOLVER_USE_ALL_FROM_MOD_2", record.mergeModName))
-                    }
-
-                    while (true) {
-                        val input = readln()
-                        val choice = findByOrder(input.toIntOrNull())
-                        if (choice == null) {
-                            ColorPrinter.warning(Localizations.t("CRESOLVER_INVALID_INPUT"))
-                            break
-                        } else {
-                            userChose = choice
-                            record.userChoice = choice
-                            break
+                        userChose = choice
+                        // "全部使用"同样作用于当前这一项
+                        record.userChoice = when (choice) {
+                            UserChoice.USE_ALL_BASE -> UserChoice.BASE_MOD
+                            UserChoice.USE_ALL_MERGE -> UserChoice.MERGE_MOD
+                            else -> choice
                         }
+                        break
                     }
                 }
             }
-            ColorPrinter.success(Localizations.t("CRESOLVER_CONFLICT_RESOLVED"))
         }
-        //最后把自动合并的节点加回去，让后续处理合并的逻辑使用同一个容器
-        conflicts.addAll(automaticMerge)
+        ColorPrinter.success(Localizations.t("CRESOLVER_CONFLICT_RESOLVED"))
     }
 
     /**
@@ -0,0 +1,81 @@
+package ankol.mod.merger.core
+
+/**
+ * 语法树节点内容哈希（64位）的计算工具，见 [BaseTreeNode.contentHash]
+ *
+ * 文本使用 FNV-1a 计算，子节点的哈希按以下两种方式组合：
+ * - [ordered] 与顺序相关，用于数组元素等按位置对比的节点
+ * - [unordered] 与顺序无关，用于按签名索引的子节点、XML属性等，合并器对比这些节点时本来就不关心顺序
+ *
+ * 所有哈希都以节点类型作为种子，不同类型的节点即使文本相同哈希也不同。
+ * @author Ankol
+ */
+object ContentHash {
+    private const val FNV_OFFSET = -0x340d631b7bdddcdbL // 0xcbf29ce484222325
+    private const val FNV_PRIME = 0x100000001b3L
+    private const val GOLDEN_RATIO = -0x61c8864680b583ebL // 0x9e3779b97f4a7c15
+
+    /**
+     * 文本的哈希
+     *
+     * @param type 节点类型
+     * @param ignoreWhitespace 是否忽略所有空白字符（与SCR合并器对比文本的规则一致）
+     */
+    fun text(type: Class<*>, text: CharSequence, ignoreWhitespace: Boolean = false): Long {
+        return combine(seed(type), text(text, ignoreWhitespace))
+    }
+
+    /**
+     * 按顺序组合子节点的哈希
+     */
+    fun <T> ordered(type: Class<*>, items: Iterable<T>, hashOf: (T) -> Long): Long {
+        var hash = seed(type)
+        var count = 0L
+        for (item in items) {
+            hash = combine(hash, hashOf(item))
+            count++
+        }
+        return combine(hash, count)
+    }
+
+    /**
+     * 不考虑顺序组合键值对的哈希，键与值的哈希先组合再相加
+     */
+    fun <V> unordered(type: Class<*>, entries: Map<String, V>, hashOf: (V) -> Long): Long {
+        var sum = 0L
+        for ((key, value) in entries) {
+            sum += mix(combine(text(key, false), hashOf(value)))
+        }
+        return combine(combine(seed(type), sum), entries.size.toLong())
+    }
+
+    private fun seed(type: Class<*>): Long {
+        return mix(type.name.hashCode().toLong())
+    }
+
+    private fun text(text: CharSequence, ignoreWhitespace: Boolean): Long {
+        var hash = FNV_OFFSET
+        for (i in 0 until text.length) {
+            val c = text[i]
+            if (ignoreWhitespace && Character.isWhitespace(c)) {
+                continue
+            }
+            hash = (hash xor c.code.toLong()) * FNV_PRIME
+        }
+        return mix(hash)
+    }
+
+    private fun combine(hash: Long, value: Long): Long {
+        return mix(hash xor (value + GOLDEN_RATIO + (hash shl 6) + (hash ushr 2)))
+    }
+
+    /**
+     * MurmurHash3 的 fmix64，让每一位都充分影响结果
+     */
+    private fun mix(value: Long): Long {
+        var h = value
+        h = (h xor (h ushr 33)) * -0xae502812aa7333L
+        h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+        return h xor (h ushr 33)
+    }
+}
@@ -0,0 +1,90 @@
+package ankol.mod.merger.core
+
+import ankol.mod.merger.tools.ColorPrinter
+import ankol.mod.merger.tools.Localizations
+import ankol.mod.merger.tools.logger
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ForkJoinPool
+
+/**
+ * MOD提取调度器
+ *
+ * 使用独立的工作窃取线程池（[ForkJoinPool]）提取所有MOD，不占用公共线程池：
+ * - 按压缩包大小从大到小提交，最大的MOD最先开始，不会在其他MOD都完成之后才单独开始
+ * - 压缩包内部的并行解压（ZIP条目分段、7z数据块）在同一个线程池中执行，
+ *   其他MOD提取完成后空闲的线程会窃取大MOD中还没有开始的解压任务
+ * - 记录每个压缩包的耗时，全部完成后输出耗时最长的压缩包，它决定了整个提取阶段的耗时
+ *
+ * @param parallelism 线程数
+ * @author Ankol
+ */
+class ExtractionScheduler(private val parallelism: Int) {
+    private val log = logger()
+
+    /**
+     * 提取所有压缩包
+     *
+     * @param archives 压缩包路径
+     * @param extract 提取单个压缩包（压缩包索引，压缩包路径）
+     * @param completed 单个压缩包提取完成后调用（压缩包索引，提取结果，耗时毫秒），在工作线程中执行
+     * @return 按 [archives] 顺序排列的提取结果
+     */
+    fun <T> run(
+        archives: List<Path>,
+        extract: (Int, Path) -> T,
+        completed: (Int, T, Long) -> Unit
+    ): List<T> {
+        val startTime = System.nanoTime()
+        val elapsedMillis = LongArray(archives.size)
+        // 大的压缩包先提交，先被线程领取
+        val order = archives.indices.sortedByDescending { sizeOf(archives[it]) }
+        val pool = ForkJoinPool(parallelism)
+        try {
+            val futures = arrayOfNulls<CompletableFuture<T>>(archives.size)
+            for (i in order) {
+                futures[i] = CompletableFuture.supplyAsync({
+                    val archiveStart = System.nanoTime()
+                    val result = extract(i, archives[i])
+                    elapsedMillis[i] = (System.nanoTime() - archiveStart) / 1_000_000
+                    log.info("Extracted '{}' in {} ms.", archives[i].fileName, elapsedMillis[i])
+                    completed(i, result, elapsedMillis[i])
+                    result
+                }, pool)
+            }
+            CompletableFuture.allOf(*futures).join()
+            val results = futures.map { it!!.join() }
+            reportCriticalPath(archives, elapsedMillis, (System.nanoTime() - startTime) / 1_000_000)
+            return results
+        } finally {
+            pool.shutdownNow()
+        }
+    }
+
+    private fun reportCriticalPath(archives: List<Path>, elapsedMillis: LongArray, totalMillis: Long) {
+        if (archives.isEmpty()) {
+            return
+        }
+        val slowest = elapsedMillis.indices.maxBy { elapsedMillis[it] }
+        ColorPrinter.cyan(
+            Localizations.t(
+                "ENGINE_EXTRACTION_SUMMARY",
+                archives.size,
+                totalMillis,
+                parallelism,
+                archives[slowest].fileName,
+                elapsedMillis[slowest]
+            )
+        )
+    }
+
+    private fun sizeOf(archive: Path): Long {
+        return try {
+            Files.size(archive)
+        } catch (_: IOException) {
+            0
+        }
+    }
+}
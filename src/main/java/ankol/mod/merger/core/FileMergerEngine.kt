@@ -1,7 +1,10 @@
 package ankol.mod.merger.core
 
+import ankol.mod.merger.constants.UserChoice
 import ankol.mod.merger.core.filetrees.MemoryFileTree
 import ankol.mod.merger.core.filetrees.PathFileTree
+import ankol.mod.merger.exception.BusinessException
+import ankol.mod.merger.merger.ConflictRecord
 import ankol.mod.merger.merger.MergerFactory
 import ankol.mod.merger.tools.*
 import ankol.mod.merger.tools.Tools.getEntryFileName
@@ -9,13 +12,19 @@ import org.apache.commons.lang3.Strings
 import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Path
+import java.nio.file.StandardCopyOption
 import java.util.*
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CompletionException
-import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
 import java.util.concurrent.atomic.AtomicInteger
 import kotlin.io.path.Path
 import kotlin.io.path.createDirectories
-import kotlin.io.path.readText
+import kotlin.io.path.deleteIfExists
 import kotlin.io.path.writeText
 
 /**
@@ -31,6 +40,13 @@ class FileMergerEngine(
     private val baseModPath: Path,
     private val argParser: SimpleArgParser
 ) {
+    companion object {
+        /**
+         * 同时预读到内存中的文件数上限
+         */
+        private const val PREFETCH_LIMIT = 256
+    }
+
     private val log = logger()
 
     /**
@@ -43,10 +59,63 @@ class FileMergerEngine(
      */
     private val baseModManager: BaseModManager = BaseModManager(tempDir, baseModPath)
 
+    /**
+     * 原样输出的文件（相对路径 -> 来源），打包时直接从来源读取，不再拷贝到合并目录
+     */
+    private val passthroughFiles = ConcurrentSkipListMap<String, PathFileTree>()
+
+    /**
+     * 不支持合并、需要用户选择版本的文件，在并行处理阶段结束后再逐个询问
+     */
+    private val pendingAssetChoices = ConcurrentLinkedQueue<Pair<String, MutableList<PathFileTree>>>()
+
+    /**
+     * 正在写出的合并结果，打包之前需要全部完成
+     */
+    private val pendingWrites = ConcurrentLinkedQueue<CompletableFuture<*>>()
+
+    /**
+     * 存在需要用户选择的冲突、合并被中止的文件，在并行处理阶段结束后统一询问，然后重新合并
+     */
+    private val pendingMerges = ConcurrentLinkedQueue<PendingMerge>()
+
+    /**
+     * 等待用户选择冲突的文件
+     *
+     * @param entry 本次合并的清单项
+     * @param recordedChoices 合并时已经使用的冲突选择
+     * @param conflicts 合并中止时需要用户选择的冲突
+     */
+    private class PendingMerge(
+        val relPath: String,
+        val fileSources: MutableList<PathFileTree>,
+        val entry: MergeManifest.Entry,
+        val recordedChoices: Map<String, UserChoice>,
+        val conflicts: List<ConflictRecord>
+    )
+
+    /**
+     * 本次合并的清单，合并完成后与输出文件一起保存
+     */
+    private val manifest = MergeManifest(mergeOptions())
+
+    /**
+     * 上一次合并的清单，仅在增量合并模式下加载
+     */
+    private var previousManifest: MergeManifest? = null
+
+    /**
+     * 上一次输出的PAK中的文件（相对路径 -> 条目位置），仅在增量合并模式下加载
+     */
+    private var previousOutput: PakIndex? = null
+    private val previousOutputEntries = HashMap<String, Int>()
+
     // 统计信息
-    private var mergedCount = 0 // 成功合并（无冲突）的文件数
+    private val mergedCount = AtomicInteger(0) // 成功合并（无冲突）的文件数
     private var totalProcessed = 0 // 处理的文件总数
-    private var pathCorrectionCount = 0 // 修正的路径数
+    private val pathCorrectionCount = AtomicInteger(0) // 修正的路径数
+    private val reusedCount = AtomicInteger(0) // 增量合并时直接复用的文件数
+    private val identicalToBaseCount = AtomicInteger(0) // 跳过了与原版文件一致的版本的文件数
 
     /**
      * 执行合并操作
@@ -62,22 +131,38 @@ class FileMergerEngine(
         for ((i, modPath) in modsToMerge.withIndex()) {
             ColorPrinter.cyan(Localizations.t("ENGINE_MOD_LIST_ITEM", (i + 1), modPath.fileName))
         }
+        val extractionThreads = extractionThreads()
         //开始合并
         try {
             Tools.deleteRecursively(tempDir) //先清理掉旧的目录
+            // 提取MOD的同时在后台预热解析器
+            val warmUp = CompletableFuture.runAsync(MergerFactory::warmUp)
             // 在提取过程中对每个mod分别进行路径修正
-            val filesByPath = extractAllMods()
+            val filesByPath = extractAllMods(extractionThreads)
+            if (argParser.hasOption("i")) {
+                loadPreviousOutput()
+            }
             // 输出目录（临时）
             val mergedDir = tempDir.resolve("merged")
             Files.createDirectories(mergedDir)
             // 开始合并文件
+            warmUp.join()
             processFiles(filesByPath, mergedDir)
             // 合并完成，打包
+            // 增量合并时需要从上一次的输出中复制文件，所以先写入临时文件，完成后再替换
             ColorPrinter.cyan(Localizations.t("ENGINE_CREATING_MERGED_PAK"))
-            PakManager.createPak(mergedDir, outputPath)
+            val pakTempPath = outputPath.resolveSibling(outputPath.fileName.toString() + ".tmp")
+            try {
+                PakManager.createPak(mergedDir, passthroughFiles, pakTempPath)
+                Files.move(pakTempPath, outputPath, StandardCopyOption.REPLACE_EXISTING)
+            } finally {
+                pakTempPath.deleteIfExists()
+            }
+            manifest.save(outputPath)
             ColorPrinter.success(Localizations.t("ENGINE_MERGED_PAK_CREATED", outputPath))
             // 打印统计信息
             printStatistics()
+            ParserRuntime.logStatistics()
         } catch (e: Exception) {
             throw RuntimeException(e)
         } finally {
@@ -86,6 +171,57 @@ class FileMergerEngine(
         }
     }
 
+    /**
+     * 影响合并结果的全局选项，与上一次合并不一致时不能复用上一次的输出
+     */
+    private fun mergeOptions(): String {
+        return "fix=${argParser.hasOption("f")};autoMergingCodeLine=${GlobalMergingStrategy.autoMergingCodeLine};autoFixPath=${GlobalMergingStrategy.autoFixPath}"
+    }
+
+    /**
+     * 加载上一次合并的清单以及输出的PAK，用于增量合并
+     */
+    private fun loadPreviousOutput() {
+        val loadedManifest = MergeManifest.load(outputPath, manifest.options)
+        if (loadedManifest == null) {
+            ColorPrinter.warning(Localizations.t("ENGINE_INCREMENTAL_MANIFEST_NOT_FOUND"))
+            return
+        }
+        try {
+            val index = CentralDirectoryReader.read(outputPath)
+            for (i in 0 until index.size) {
+                previousOutputEntries[index.entryName(i)] = i
+            }
+            previousOutput = index
+            previousManifest = loadedManifest
+        } catch (e: IOException) {
+            log.warn("Failed to index previous output '{}': {}", outputPath, e.message)
+            ColorPrinter.warning(Localizations.t("ENGINE_INCREMENTAL_MANIFEST_NOT_FOUND"))
+        }
+    }
+
+    /**
+     * 输入与上一次合并完全相同时，返回上一次输出中的对应文件
+     *
+     * @param relPath 文件相对路径
+     * @param entry 本次合并的清单项
+     */
+    private fun findReusableOutput(relPath: String, entry: MergeManifest.Entry): PathFileTree? {
+        val previousEntry = previousManifest?.entries?.get(relPath) ?: return null
+        if (previousEntry.baseCrc != entry.baseCrc || previousEntry.sources != entry.sources) {
+            return null
+        }
+        val index = previousOutput ?: return null
+        val position = previousOutputEntries[relPath] ?: return null
+        val entrySource = index.entrySource(position) ?: return null
+        return PathFileTree(
+            getEntryFileName(relPath),
+            relPath,
+            mutableListOf(outputPath.fileName.toString()),
+            entrySource = entrySource
+        )
+    }
+
     /**
      * 对单个MOD的文件路径进行修正
      * 
@@ -128,7 +264,7 @@ class FileMergerEngine(
             ColorPrinter.cyan(Localizations.t("ENGINE_PATH_CORRECTIONS_FOR_MOD", modFileName))
             for (entry in corrections.entries) {
                 ColorPrinter.success(Localizations.t("ENGINE_PATH_CORRECTION_ITEM", entry.key, entry.value))
-                pathCorrectionCount++
+                pathCorrectionCount.incrementAndGet()
             }
         }
 
@@ -139,29 +275,46 @@ class FileMergerEngine(
      * 从所有 mod 中提取文件，按相对路径分组
      * 在提取过程中对每个mod分别进行路径修正，避免不同mod的同名文件冲突
      */
-    private fun extractAllMods(): MutableMap<String, MutableList<PathFileTree>> {
-        val filesByPath = ConcurrentHashMap<String, MutableList<PathFileTree>>()
-        val index = AtomicInteger(0)
-        modsToMerge.parallelStream().forEach { modPath: Path ->
+    private fun extractAllMods(threads: Int): MutableMap<String, MutableList<PathFileTree>> {
+        val scheduler = ExtractionScheduler(threads)
+        val extractedByMod = scheduler.run(modsToMerge, { i, modPath ->
             try {
                 val archiveName = modPath.fileName.toString() // 解压的压缩包真实名称
-                val modTempDir: Path = tempDir.resolve(archiveName + index.getAndIncrement()) // 生成临时目录名字
+                val modTempDir: Path = tempDir.resolve(archiveName + i) // 生成临时目录名字
 
                 val extractedFiles = PakManager.extractPak(modPath, modTempDir)
-                val correctedFiles = correctPathsForMod(archiveName, extractedFiles)
-                // 按文件路径分组，并记录来源MOD名字
-                for ((fileRelPath, fileSource) in correctedFiles) {
-                    filesByPath.computeIfAbsent(fileRelPath) { Collections.synchronizedList<PathFileTree>(ArrayList()) }
-                        .add(fileSource)
-                }
-                ColorPrinter.success(Localizations.t("ENGINE_EXTRACTED_FILES", correctedFiles.size))
+                correctPathsForMod(archiveName, extractedFiles)
             } catch (e: IOException) {
                 throw CompletionException(Localizations.t("ENGINE_EXTRACT_FAILED", modPath.fileName), e)
             }
+        }) { i, correctedFiles, elapsedMillis ->
+            ColorPrinter.success(
+                Localizations.t("ENGINE_EXTRACTED_FILES", correctedFiles.size, modsToMerge[i].fileName, elapsedMillis)
+            )
+        }
+        // 按文件路径分组，并记录来源MOD名字
+        // 分组按MOD列表的顺序进行，保证每次合并的顺序一致，增量合并才能识别出相同的输入
+        val filesByPath = HashMap<String, MutableList<PathFileTree>>()
+        for (correctedFiles in extractedByMod) {
+            for ((fileRelPath, fileSource) in correctedFiles) {
+                filesByPath.computeIfAbsent(fileRelPath) { ArrayList() }.add(fileSource)
+            }
         }
         return filesByPath
     }
 
+    /**
+     * 提取MOD使用的线程数，通过 -t 指定，默认为CPU核心数
+     */
+    private fun extractionThreads(): Int {
+        val value = argParser.getOptionValue("t") ?: return Runtime.getRuntime().availableProcessors()
+        val threads = value.toIntOrNull()
+        if (threads == null || threads <= 0) {
+            throw BusinessException(Localizations.t("ENGINE_INVALID_THREADS", value))
+        }
+        return threads
+    }
+
     /**
      * 处理所有文件（合并或复制）
      */
@@ -171,23 +324,177 @@ class FileMergerEngine(
         if (globalFixActived) {
             ColorPrinter.debug(Localizations.t("ENGINE_GLOBAL_FIX_ENABLED"))
         }
-        for ((relPath, fileSources) in filesByName) {
-            totalProcessed++
-            try {
-                //单个文件处理
-                if (fileSources.size == 1) {
-                    if (globalFixActived) {
-                        processSingleFile(relPath, fileSources.first(), mergedDir) //做压力测试的时候把这个打开
-                    } else {
-                        Tools.zeroCopy(fileSources.first().safeGetFullPathName(), mergedDir.resolve(relPath))
+        val verifyHash = argParser.hasOption("v")
+        totalProcessed = filesByName.size
+        // 并行阶段：文件之间互不依赖，分发到所有CPU核心上处理
+        // 合并过程中不询问用户，需要用户选择冲突的文件先中止合并，不会阻塞其他文件
+        // 需要合并的文件先在I/O线程中预读，读取完成后再交给CPU线程，CPU线程不等待磁盘
+        val executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+        val prefetchPermits = Semaphore(PREFETCH_LIMIT)
+        try {
+            val futures = filesByName.map { (relPath, fileSources) ->
+                if (!shouldPrefetch(relPath, fileSources, globalFixActived)) {
+                    return@map CompletableFuture.runAsync({ processFile(relPath, fileSources, mergedDir, globalFixActived, verifyHash) }, executor)
+                }
+                prefetchPermits.acquire() //预读的内容都在内存中，限制同时预读的文件数
+                prefetch(relPath, fileSources).thenRunAsync({
+                    try {
+                        processFile(relPath, fileSources, mergedDir, globalFixActived, verifyHash)
+                    } finally {
+                        fileSources.forEach { it.release() }
+                        prefetchPermits.release()
                     }
+                }, executor)
+            }
+            CompletableFuture.allOf(*futures.toTypedArray()).join()
+            // 交互阶段：统一询问所有冲突，然后只重新合并这些文件
+            resolvePendingMerges(mergedDir, executor)
+        } finally {
+            executor.shutdown()
+        }
+        // 打包之前等待所有合并结果写出完成
+        CompletableFuture.allOf(*pendingWrites.toTypedArray()).join()
+        // 单线程阶段：不支持合并的文件，逐个让用户选择使用哪个版本
+        for ((relPath, fileSources) in pendingAssetChoices.sortedBy { it.first }) {
+            choiseWhichAssetToUse(relPath, fileSources)
+        }
+    }
+
+    /**
+     * 是否需要预读：有多个版本（或者开启了全局修正）并且支持合并的文件，增量合并时可以复用上一次输出的文件除外
+     */
+    private fun shouldPrefetch(relPath: String, fileSources: List<PathFileTree>, globalFixActived: Boolean): Boolean {
+        if (fileSources.size < 2 && !globalFixActived) {
+            return false
+        }
+        if (previousManifest?.entries?.containsKey(relPath) == true) {
+            return false
+        }
+        return MergerFactory.getMerger(relPath).isPresent
+    }
+
+    /**
+     * 在I/O线程中把各个版本的内容以及原版文件读取到内存中，读取失败时忽略，由合并时再次读取并报错
+     */
+    private fun prefetch(relPath: String, fileSources: List<PathFileTree>): CompletableFuture<Void> {
+        val reads = ArrayList<CompletableFuture<*>>(fileSources.size + 1)
+        for (source in fileSources) {
+            reads.add(IoExecutor.submit(source.storagePath()) { source.preload() })
+        }
+        if (baseModManager.loaded) {
+            reads.add(IoExecutor.submit(baseModPath) { baseModManager.extractFileContent(relPath) })
+        }
+        return CompletableFuture.allOf(*reads.toTypedArray()).exceptionally { e ->
+            log.debug("Failed to prefetch '{}': {}", relPath, e.message)
+            null
+        }
+    }
+
+    /**
+     * 在I/O线程中写出合并结果，不阻塞合并线程
+     *
+     * 写出失败时与合并失败的处理一致，使用 [fallback] 的版本
+     *
+     * @param written 写出成功后执行
+     */
+    private fun writeMergedFile(
+        targetPath: Path,
+        relPath: String,
+        content: String,
+        fallback: PathFileTree,
+        written: () -> Unit = {}
+    ) {
+        val write = IoExecutor.submit(targetPath) {
+            targetPath.parent.createDirectories()
+            targetPath.writeText(content)
+            written()
+        }.exceptionally { e ->
+            val cause = e.cause ?: e
+            ColorPrinter.error(Localizations.t("ENGINE_MERGE_FAILED", cause.message))
+            log.error("Failed to write merged file '{}': {}", relPath, cause.message)
+            targetPath.deleteIfExists()
+            passthroughFiles[relPath] = fallback
+            null
+        }
+        pendingWrites.add(write)
+    }
+
+    /**
+     * 统一询问所有文件中需要用户选择的冲突，然后带着用户的选择重新合并这些文件
+     *
+     * 每个文件的合并停在第一轮需要用户选择的对比上，之后的对比依赖这一轮的选择，
+     * 所以重新合并时仍可能遇到新的冲突，此时再进行下一次询问，直到所有文件合并完成
+     */
+    private fun resolvePendingMerges(mergedDir: Path, executor: ExecutorService) {
+        while (pendingMerges.isNotEmpty()) {
+            val pending = pendingMerges.sortedBy { it.relPath }
+            pendingMerges.clear()
+            ConflictResolver.resolveBatch(pending.flatMap { it.conflicts })
+            ColorPrinter.cyan(Localizations.t("ENGINE_REMERGING_FILES", pending.size))
+            val futures = pending.map { merge ->
+                val choices = LinkedHashMap(merge.recordedChoices)
+                for (record in merge.conflicts) {
+                    choices[record.choiceKey()] = record.userChoice!!
+                }
+                CompletableFuture.runAsync({ mergeFiles(merge.relPath, merge.fileSources, mergedDir, merge.entry, choices) }, executor)
+            }
+            CompletableFuture.allOf(*futures.toTypedArray()).join()
+        }
+    }
+
+    /**
+     * 处理单个相对路径下的文件（复制或合并），在工作线程中执行
+     */
+    private fun processFile(
+        relPath: String,
+        fileSources: MutableList<PathFileTree>,
+        mergedDir: Path,
+        globalFixActived: Boolean,
+        verifyHash: Boolean
+    ) {
+        try {
+            val entry = MergeManifest.Entry(
+                fileSources.map { MergeManifest.SourceFingerprint.of(it) },
+                baseModManager.getFileCrc(relPath) ?: -1,
+                emptyMap()
+            )
+            // 增量合并：输入没有变化，直接复用上一次的输出
+            val reusableOutput = findReusableOutput(relPath, entry)
+            if (reusableOutput != null) {
+                passthroughFiles[relPath] = reusableOutput
+                manifest.entries[relPath] = previousManifest!!.entries[relPath]!!
+                reusedCount.incrementAndGet()
+                return
+            }
+            // 根据CRC和大小去掉内容相同的版本（不需要解压）
+            val distinctSources = PakManager.deduplicate(fileSources, verifyHash)
+            // 与原版文件完全一致的版本不会带来任何修改，不需要参与合并，同样只比较CRC和大小
+            var modifiedSources = distinctSources
+            if (distinctSources.size > 1 || globalFixActived) {
+                modifiedSources = distinctSources.filterTo(ArrayList()) { !baseModManager.isIdenticalToBase(relPath, it, verifyHash) }
+                if (modifiedSources.size < distinctSources.size) {
+                    identicalToBaseCount.incrementAndGet()
+                }
+            }
+            if (modifiedSources.isEmpty()) {
+                // 所有版本都与原版一致，直接使用第一个
+                passthroughFiles[relPath] = distinctSources.first()
+            } else if (modifiedSources.size == 1) {
+                //单个文件处理
+                if (globalFixActived) {
+                    processSingleFile(relPath, modifiedSources.first(), mergedDir) //做压力测试的时候把这个打开
                 } else {
-                    // 在多个 mod 中存在，需要合并
-                    mergeFiles(relPath, fileSources, mergedDir)
+                    passthroughFiles[relPath] = modifiedSources.first()
                 }
-            } catch (e: Exception) {
-                ColorPrinter.error(Localizations.t("ENGINE_PROCESSING_ERROR", relPath, e.message))
+            } else {
+                // 仍有不同的版本，需要合并
+                val recordedChoices = previousManifest?.entries?.get(relPath)?.choices ?: emptyMap()
+                mergeFiles(relPath, modifiedSources, mergedDir, entry, recordedChoices)
+                return
             }
+            manifest.entries[relPath] = entry
+        } catch (e: Exception) {
+            ColorPrinter.error(Localizations.t("ENGINE_PROCESSING_ERROR", relPath, e.message))
         }
     }
 
@@ -206,7 +513,7 @@ class FileMergerEngine(
                 // 基准mod中存在该文件，需要进行对比合并
                 if (originalBaseModContent != null) {
                     val context = MergerContext().also { it.baseModManager = baseModManager }
-                    val mergerOptional = MergerFactory.getMerger(relPath, context)
+                    val mergerOptional = MergerFactory.getMerger(relPath)
 
                     // 如果支持合并，进行对比合并
                     if (mergerOptional.isPresent) {
@@ -220,16 +527,14 @@ class FileMergerEngine(
                         context.mod2Name = fileCurrent.getFirstArchiveFileName()
                         context.isFirstModMergeWithBaseMod = true // 标记为与data0.pak的合并
 
-                        val result = merger.merge(fileBase, fileCurrent)
+                        val result = merger.merge(fileBase, fileCurrent, context)
                         val mergedContent = result.mergedContent
 
-                        // 写入合并结果
-                        val targetPath = mergedOutputDir.resolve(relPath)
-                        targetPath.parent.createDirectories()
-                        targetPath.writeText(mergedContent)
-
-                        this.mergedCount++
-                        ColorPrinter.success(Localizations.t("ENGINE_MERGE_SUCCESS", context.fileName))
+                        // 写入合并结果，写入成功后才算合并完成
+                        writeMergedFile(mergedOutputDir.resolve(relPath), relPath, mergedContent, fileCurrent) {
+                            this.mergedCount.incrementAndGet()
+                            ColorPrinter.success(Localizations.t("ENGINE_MERGE_SUCCESS", relPath))
+                        }
                         return
                     }
                 }
@@ -237,8 +542,8 @@ class FileMergerEngine(
                 ColorPrinter.error("Processing file '${relPath}' error, Reason: ${e.message}", e)
             }
         }
-        // 没有基准mod，或者基准mod中不存在该文件，或者不支持合并，直接复制
-        Tools.zeroCopy(fileCurrent.safeGetFullPathName(), mergedOutputDir.resolve(relPath))
+        // 没有基准mod，或者基准mod中不存在该文件，或者不支持合并，原样输出
+        passthroughFiles[relPath] = fileCurrent
     }
 
     /**
@@ -246,24 +551,28 @@ class FileMergerEngine(
      * 对MOD进行顺序合并
      *
      * @param relPath     当前合并的文件相对路径
-     * @param fileSources 待合并的同名文件的来源
+     * @param fileSources 待合并的同名文件的来源（内容互不相同）
      * @param mergedDir   合并输出目录
+     * @param entry       本次合并的清单项，合并完成后记录用户做出的冲突选择
+     * @param recordedChoices 已有的冲突选择（冲突标识 -> 选择），相同的冲突不再询问
      */
-    private fun mergeFiles(relPath: String, fileSources: MutableList<PathFileTree>, mergedDir: Path) {
-        // 先简单的判断一下文件内容（计算hash值）、大小是否相同，不同肯定不一样
-        if (areAllFilesIdentical(fileSources)) {
-            // 文件都一样，直接使用第一个
-            Tools.zeroCopy(fileSources.first().safeGetFullPathName(), mergedDir.resolve(relPath))
-            return
-        }
-
+    private fun mergeFiles(
+        relPath: String,
+        fileSources: MutableList<PathFileTree>,
+        mergedDir: Path,
+        entry: MergeManifest.Entry,
+        recordedChoices: Map<String, UserChoice>
+    ) {
         val context = MergerContext()
         context.baseModManager = baseModManager
-        val mergerOptional = MergerFactory.getMerger(relPath, context) //获取合并器
+        context.recordedChoices = recordedChoices
+        context.isDeferConflicts = true
+        val mergerOptional = MergerFactory.getMerger(relPath) //获取合并器
 
-        //不支持合并的文件类型，直接让用户选择用哪个文件
+        //不支持合并的文件类型，稍后让用户选择用哪个文件
         if (mergerOptional.isEmpty) {
-            choiseWhichAssetToUse(relPath, fileSources, mergedDir)
+            pendingAssetChoices.add(Pair(relPath, fileSources))
+            manifest.entries[relPath] = entry
             return
         }
 
@@ -271,66 +580,44 @@ class FileMergerEngine(
             // 支持合并，开始处理合并逻辑
             ColorPrinter.cyan(Localizations.t("ENGINE_MERGING_FILE", relPath, fileSources.size))
             val merger = mergerOptional.get()
-            var baseMergedContent = "" //基准文本内容
 
             var originalBaseModContent: String? = null
             if (baseModManager.loaded) {
                 originalBaseModContent = baseModManager.extractFileContent(relPath)
             }
             val fileName = getEntryFileName(relPath)
-
-            // 顺序合并：使用data0.pak作为基准（如果存在），然后依次合并各个mod
-            for ((i, fileCurrent) in fileSources.withIndex()) {
-                val currentModPath = fileCurrent.safeGetFullPathName()
-                val currentModName = fileCurrent.getFirstArchiveFileName()
-
-                // 第一个 mod：如果有data0.pak基准文件，使用它作为base与第一个mod合并
-                if (i == 0) {
-                    if (originalBaseModContent != null) {
-                        val fileBase = MemoryFileTree(fileName, relPath, mutableListOf("data0.pak"), originalBaseModContent)
-
-                        context.fileName = relPath
-                        context.mod1Name = "data0.pak"
-                        context.mod2Name = currentModName
-                        context.isFirstModMergeWithBaseMod = true // 标记为第一个mod与data0.pak的合并
-
-                        val result = merger.merge(fileBase, fileCurrent)
-                        baseMergedContent = result.mergedContent
-                    } else {
-                        // 没有data0.pak基准文件，直接使用第一个mod的内容
-                        baseMergedContent = currentModPath.readText()
-                    }
-                } else {
-                    // 后续的 mod，与当前合并结果合并
-                    val previousSource = fileSources[i - 1]
-                    val previousModName = previousSource.getFirstArchiveFileName()
-
-                    // 执行合并 - 使用真实的MOD压缩包名字
-                    val fileBase = MemoryFileTree(fileName, relPath, mutableListOf(previousModName), baseMergedContent)
-
-                    context.fileName = relPath
-                    context.mod1Name = previousModName
-                    context.mod2Name = currentModName
-                    context.isFirstModMergeWithBaseMod = false // 后续合并正常处理冲突
-
-                    val result = merger.merge(fileBase, fileCurrent)
-                    baseMergedContent = result.mergedContent
-                }
+            context.fileName = relPath
+
+            // 多路合并：使用data0.pak作为基准（如果存在），否则以第一个mod为基准，依次合并各个mod
+            // 每个版本只解析一次，合并结果最后一次性生成
+            val result = if (originalBaseModContent != null) {
+                val fileBase = MemoryFileTree(fileName, relPath, mutableListOf("data0.pak"), originalBaseModContent)
+                context.isFirstModMergeWithBaseMod = true // 标记为第一个mod与data0.pak的合并
+                merger.mergeAll(fileBase, fileSources, context)
+            } else {
+                context.isFirstModMergeWithBaseMod = false
+                merger.mergeAll(fileSources.first(), fileSources.drop(1), context)
+            }
+            if (result.deferred) {
+                // 等待统一询问用户，之后带着选择重新合并
+                ColorPrinter.warning(Localizations.t("ENGINE_CONFLICTS_DEFERRED", relPath))
+                pendingMerges.add(PendingMerge(relPath, fileSources, entry, recordedChoices, context.pendingConflicts))
+                return
+            }
+            val baseMergedContent = result.mergedContent
+
+            // 写入最终合并结果，写入成功后才算合并完成
+            val resolvedEntry = entry.copy(choices = context.resolvedChoices)
+            writeMergedFile(mergedDir.resolve(relPath), relPath, baseMergedContent, fileSources.last()) {
+                manifest.entries[relPath] = resolvedEntry
+                this.mergedCount.incrementAndGet()
+                ColorPrinter.success(Localizations.t("ENGINE_MERGE_SUCCESS", relPath))
             }
-
-            // 写入最终合并结果
-            val targetPath = mergedDir.resolve(relPath)
-            targetPath.parent.createDirectories()
-            targetPath.writeText(baseMergedContent)
-
-            this.mergedCount++
-            ColorPrinter.success(Localizations.t("ENGINE_MERGE_SUCCESS", context.fileName))
         } catch (e: Exception) {
             ColorPrinter.error(Localizations.t("ENGINE_MERGE_FAILED", e.message))
             log.error("Failed to merge file '{}': {}", relPath, e.message)
             // todo 这里合并失败的策略还得再调整下，现在是失败时使用最后一个 mod 的版本
-            val lastSource: PathFileTree = fileSources.last()
-            Tools.zeroCopy(lastSource.safeGetFullPathName(), mergedDir.resolve(relPath))
+            passthroughFiles[relPath] = fileSources.last()
         }
     }
 
@@ -338,11 +625,7 @@ class FileMergerEngine(
     /**
      * 不支持合并的文件类型，让用户选择使用哪个版本
      */
-    private fun choiseWhichAssetToUse(
-        relPath: String,
-        fileSources: MutableList<PathFileTree>,
-        mergedDir: Path
-    ) {
+    private fun choiseWhichAssetToUse(relPath: String, fileSources: MutableList<PathFileTree>) {
         ColorPrinter.warning("\n${Localizations.t("ASSET_NOT_SUPPORT_FILE_EXTENSION", relPath)}")
         ColorPrinter.warning(Localizations.t("ASSET_CHOSE_WHICH_VERSION_TO_USE"))
         for ((i, fileTree) in fileSources.withIndex()) {
@@ -360,7 +643,7 @@ class FileMergerEngine(
                             chosenSource.getFirstArchiveFileName(),
                         )
                     )
-                    Tools.zeroCopy(chosenSource.safeGetFullPathName(), mergedDir.resolve(relPath))
+                    passthroughFiles[relPath] = chosenSource
                     return
                 }
             }
@@ -368,22 +651,6 @@ class FileMergerEngine(
         }
     }
 
-    /**
-     * 检查多个文件是否内容相同
-     */
-    private fun areAllFilesIdentical(fileSources: MutableList<PathFileTree>): Boolean {
-        if (fileSources.size <= 1) {
-            return true
-        }
-        val first = fileSources.first()
-        for (i in 1 until fileSources.size) {
-            if (!PakManager.areFilesIdentical(first, fileSources[i])) {
-                return false
-            }
-        }
-        return true
-    }
-
     /**
      * 打印合并统计信息
      */
@@ -391,9 +658,15 @@ class FileMergerEngine(
         ColorPrinter.cyan("\n{}", "=".repeat(75))
         ColorPrinter.cyan(Localizations.t("ENGINE_STATISTICS_TITLE"))
         ColorPrinter.cyan(Localizations.t("ENGINE_TOTAL_FILES_PROCESSED", totalProcessed))
-        ColorPrinter.success(Localizations.t("ENGINE_MERGED_NO_CONFLICTS", mergedCount))
-        if (pathCorrectionCount > 0) {
-            ColorPrinter.success(Localizations.t("ENGINE_PATH_CORRECTIONS_APPLIED", pathCorrectionCount))
+        ColorPrinter.success(Localizations.t("ENGINE_MERGED_NO_CONFLICTS", mergedCount.get()))
+        if (pathCorrectionCount.get() > 0) {
+            ColorPrinter.success(Localizations.t("ENGINE_PATH_CORRECTIONS_APPLIED", pathCorrectionCount.get()))
+        }
+        if (reusedCount.get() > 0) {
+            ColorPrinter.success(Localizations.t("ENGINE_INCREMENTAL_REUSED_FILES", reusedCount.get()))
+        }
+        if (identicalToBaseCount.get() > 0) {
+            ColorPrinter.success(Localizations.t("ENGINE_IDENTICAL_TO_BASE_FILES", identicalToBaseCount.get()))
         }
         ColorPrinter.cyan("{}", "=".repeat(75))
     }
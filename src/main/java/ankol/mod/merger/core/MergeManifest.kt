@@ -0,0 +1,169 @@
+package ankol.mod.merger.core
+
+import ankol.mod.merger.constants.UserChoice
+import ankol.mod.merger.core.filetrees.PathFileTree
+import ankol.mod.merger.tools.logger
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import kotlin.io.path.*
+
+/**
+ * 合并清单，与输出的PAK文件保存在同一目录下（例如 data7.pak.manifest）
+ *
+ * 记录输出文件中每个文件的来源MOD、来源条目的校验值、对应的原版文件CRC以及合并时用户做出的冲突选择。
+ * 增量合并时，输入没有变化的文件直接从上一次输出的PAK中原样复制，只重新合并发生变化的文件。
+ *
+ * @param options 影响合并结果的全局选项，选项不同时上一次的清单不可复用
+ * @author Ankol
+ */
+class MergeManifest(val options: String) {
+    companion object {
+        private const val MAGIC = 0x4D4D4D46 // "MMMF"
+
+        /**
+         * 合并器版本，合并逻辑发生变化、同样的输入会得到不同的输出时需要递增，使旧的清单失效
+         */
+        const val MERGER_VERSION = 6
+
+        private const val MANIFEST_SUFFIX = ".manifest"
+
+        private val log = logger<MergeManifest>()
+
+        /**
+         * 读取输出文件对应的清单
+         *
+         * @param outputPath 输出的PAK文件路径
+         * @param options 本次合并的全局选项
+         * @return 清单，不存在、已损坏、版本或选项不一致，或者输出文件在上一次合并之后被修改过时返回null
+         */
+        fun load(outputPath: Path, options: String): MergeManifest? {
+            val manifestPath = pathOf(outputPath)
+            if (manifestPath.notExists() || outputPath.notExists()) {
+                return null
+            }
+            return try {
+                DataInputStream(GZIPInputStream(BufferedInputStream(manifestPath.inputStream()))).use { input ->
+                    if (input.readInt() != MAGIC || input.readInt() != MERGER_VERSION || input.readUTF() != options) {
+                        return null
+                    }
+                    val outputSize = input.readLong()
+                    val outputModifiedTime = input.readLong()
+                    if (outputSize != outputPath.fileSize() || outputModifiedTime != outputPath.getLastModifiedTime().toMillis()) {
+                        log.info("Output file '{}' has changed since the last merge, manifest ignored.", outputPath)
+                        return null
+                    }
+                    val manifest = MergeManifest(options)
+                    repeat(input.readInt()) {
+                        val relPath = input.readUTF()
+                        val sources = List(input.readInt()) {
+                            SourceFingerprint(input.readUTF(), input.readUTF(), input.readLong(), input.readUTF())
+                        }
+                        val baseCrc = input.readLong()
+                        val choices = LinkedHashMap<String, UserChoice>()
+                        repeat(input.readInt()) {
+                            choices[input.readUTF()] = UserChoice.entries[input.readByte().toInt()]
+                        }
+                        manifest.entries[relPath] = Entry(sources, baseCrc, choices)
+                    }
+                    manifest
+                }
+            } catch (e: Exception) {
+                log.warn("Failed to read merge manifest '{}', ignored. Reason: {}", manifestPath, e.message)
+                null
+            }
+        }
+
+        /**
+         * 清单文件路径
+         */
+        fun pathOf(outputPath: Path): Path {
+            return outputPath.resolveSibling(outputPath.fileName.toString() + MANIFEST_SUFFIX)
+        }
+    }
+
+    /**
+     * 文件相对路径 -> 清单项
+     */
+    val entries: MutableMap<String, Entry> = ConcurrentSkipListMap()
+
+    /**
+     * 来源文件的指纹
+     *
+     * @param modName 来源MOD名称（嵌套压缩包为完整的链路）
+     * @param entryName 文件在MOD中的路径
+     * @param size 文件大小
+     * @param checksum 压缩包记录的CRC-32，未知时为文件内容的SHA-256
+     */
+    data class SourceFingerprint(val modName: String, val entryName: String, val size: Long, val checksum: String) {
+        companion object {
+            fun of(fileTree: PathFileTree): SourceFingerprint {
+                val crc = fileTree.getCrc()
+                val checksum = if (crc != null) "crc32:%08x".format(crc) else "sha256:" + fileTree.getOrComputeHash()
+                return SourceFingerprint(fileTree.getFullArchiveFileName(), fileTree.fileEntryName, fileTree.getSize(), checksum)
+            }
+        }
+    }
+
+    /**
+     * 清单项
+     *
+     * @param sources 按合并顺序排列的来源文件
+     * @param baseCrc 原版文件（data0.pak）的CRC-32，不存在时为-1
+     * @param choices 合并时用户做出的冲突选择（冲突标识 -> 选择）
+     */
+    data class Entry(
+        val sources: List<SourceFingerprint>,
+        val baseCrc: Long,
+        val choices: Map<String, UserChoice>
+    )
+
+    /**
+     * 写出清单，需要在输出文件写入完成之后调用
+     *
+     * @param outputPath 输出的PAK文件路径
+     */
+    fun save(outputPath: Path) {
+        val manifestPath = pathOf(outputPath)
+        val tempFile = Files.createTempFile(manifestPath.parent, manifestPath.fileName.toString(), ".tmp")
+        try {
+            DataOutputStream(GZIPOutputStream(BufferedOutputStream(tempFile.outputStream()))).use { output ->
+                output.writeInt(MAGIC)
+                output.writeInt(MERGER_VERSION)
+                output.writeUTF(options)
+                output.writeLong(outputPath.fileSize())
+                output.writeLong(outputPath.getLastModifiedTime().toMillis())
+                output.writeInt(entries.size)
+                for ((relPath, entry) in entries) {
+                    output.writeUTF(relPath)
+                    output.writeInt(entry.sources.size)
+                    for (source in entry.sources) {
+                        output.writeUTF(source.modName)
+                        output.writeUTF(source.entryName)
+                        output.writeLong(source.size)
+                        output.writeUTF(source.checksum)
+                    }
+                    output.writeLong(entry.baseCrc)
+                    output.writeInt(entry.choices.size)
+                    for ((key, choice) in entry.choices) {
+                        output.writeUTF(key)
+                        output.writeByte(choice.ordinal)
+                    }
+                }
+            }
+            Files.move(tempFile, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            log.warn("Failed to write merge manifest '{}'. Reason: {}", manifestPath, e.message)
+        } finally {
+            tempFile.deleteIfExists()
+        }
+    }
+}
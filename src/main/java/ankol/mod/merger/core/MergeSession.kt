@@ -0,0 +1,84 @@
+package ankol.mod.merger.core
+
+import ankol.mod.merger.constants.UserChoice
+import ankol.mod.merger.merger.ConflictRecord
+import ankol.mod.merger.merger.ConflictType
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * 合并会话，保存单次合并调用中产生的全部状态
+ *
+ * 合并器本身不保存任何状态，[AbstractFileMerger.mergeAll] 中每一轮对比都会创建新的会话，
+ * 所以同一个合并器实例可以在多个线程之间共享
+ *
+ * @param context 当前执行合并逻辑的上下文信息
+ * @param originalBaseModRoot 基准MOD（data0.pak）对应文件的语法树，用于三方对比，不存在时为null
+ * @author Ankol
+ */
+open class MergeSession<N : BaseTreeNode>(
+    val context: MergerContext,
+    val originalBaseModRoot: N?
+) {
+    /**
+     * 标记冲突项的容器
+     */
+    val conflicts = ArrayList<ConflictRecord>()
+
+    /**
+     * 处理对比过程中记录的冲突
+     *
+     * 第一个MOD与原版文件合并时自动处理，否则提示用户解决。
+     * [MergerContext.deferConflicts] 为true时不提示用户，需要用户选择的冲突记录到 [MergerContext.pendingConflicts]
+     *
+     * @return 冲突是否都已解决，返回false时之后的对比依赖用户的选择，调用方需要停止本次合并
+     */
+    fun resolveConflicts(): Boolean {
+        if (conflicts.isEmpty()) {
+            return true
+        }
+        if (context.isFirstModMergeWithBaseMod) {
+            for (record in conflicts) {
+                if (record.conflictType == ConflictType.REMOVAL) {
+                    // 删除类型冲突：MOD缺少原版节点，应该保留原版（补回缺失的代码）
+                    // 因为这很可能是MOD过期导致的缺失，而非故意删除
+                    record.userChoice = UserChoice.BASE_MOD
+                } else {
+                    // 普通修改冲突：使用MOD修改的版本
+                    record.userChoice = UserChoice.MERGE_MOD
+                }
+            }
+        } else {
+            // 增量合并（或统一询问后重新合并）时，与上一次相同的冲突直接沿用上一次的选择
+            val replayed = Collections.newSetFromMap(IdentityHashMap<ConflictRecord, Boolean>())
+            if (context.recordedChoices.isNotEmpty()) {
+                for (record in conflicts) {
+                    if (record.userChoice == null) {
+                        context.recordedChoices[record.choiceKey()]?.let {
+                            record.userChoice = it
+                            replayed.add(record)
+                        }
+                    }
+                }
+            }
+            // 延后处理：等待所有文件合并完成后统一询问用户
+            if (context.isDeferConflicts) {
+                val unresolved = conflicts.filter { it.userChoice == null }
+                if (unresolved.isNotEmpty()) {
+                    context.pendingConflicts.addAll(unresolved)
+                    return false
+                }
+            }
+            // 正常情况下，提示用户解决冲突。沿用的选择不是自动合并，不交给冲突解决器输出
+            if (replayed.isEmpty()) {
+                ConflictResolver.resolveConflict(conflicts)
+            } else {
+                ConflictResolver.resolveConflict(conflicts.filterTo(ArrayList()) { it !in replayed })
+            }
+            for (record in conflicts) {
+                record.userChoice?.let { context.resolvedChoices[record.choiceKey()] = it }
+            }
+        }
+        return true
+    }
+}
@@ -0,0 +1,218 @@
+package ankol.mod.merger.core
+
+import org.antlr.v4.runtime.TokenStream
+import org.antlr.v4.runtime.TokenStreamRewriter
+import org.antlr.v4.runtime.misc.Interval
+import java.util.*
+
+/**
+ * 多路合并的合并文档
+ *
+ * 多路合并时基准文件与每个MOD版本都只解析一次，合并结果由这些语法树的节点拼接而成，不再重新解析中间结果：
+ * - 被替换或删除的节点记录在替换表中，后续MOD对比时通过 [current] 获取节点当前的版本
+ * - 新增的节点由合并器直接放入所在容器的子节点中，插入位置记录在容器所属的Token流上
+ * - 每个Token流对应一个 [TokenStreamRewriter]，所有修改在生成结果时一次性应用
+ * - 替换和插入使用的节点文本在生成结果时才计算，后续MOD对这些节点内部的修改也会体现在结果中
+ * - 记录内容被修改过的节点，对比时只有未被修改过的节点才能使用 [BaseTreeNode.contentHash] 跳过整棵子树（见 [isUnchanged]）
+ *
+ * @author Ankol
+ */
+class MergedDocument {
+    /**
+     * 插入位置，位于 [tokenStream] 中索引为 [index] 的Token之前
+     */
+    data class InsertPosition(val tokenStream: TokenStream, val index: Int)
+
+    private sealed interface Edit {
+        val target: BaseTreeNode
+    }
+
+    private class Replace(override val target: BaseTreeNode, val replacement: BaseTreeNode) : Edit
+    private class Delete(override val target: BaseTreeNode) : Edit
+
+    /**
+     * 被替换或删除的节点 -> 当前版本，删除的节点对应null
+     */
+    private val replacements = IdentityHashMap<BaseTreeNode, BaseTreeNode?>()
+
+    /**
+     * 替换和删除操作，按发生顺序记录
+     */
+    private val edits = ArrayList<Edit>()
+
+    /**
+     * 已经完成的对比轮次中的插入内容
+     */
+    private val inserts = LinkedHashMap<InsertPosition, MutableList<Any>>()
+
+    /**
+     * 当前对比轮次中的插入内容
+     */
+    private val stepInserts = LinkedHashMap<InsertPosition, ArrayDeque<Any>>()
+
+    /**
+     * 新增节点 -> 插入位置
+     */
+    private val insertPositions = IdentityHashMap<BaseTreeNode, InsertPosition>()
+
+    private val rewriters = IdentityHashMap<TokenStream, TokenStreamRewriter>()
+
+    /**
+     * 内容被修改过的节点（被替换、删除或者新增了子节点）及其所有上级节点
+     */
+    private val modifiedNodes: MutableSet<BaseTreeNode> = Collections.newSetFromMap(IdentityHashMap())
+
+    /**
+     * 获取节点当前的版本
+     *
+     * @return 节点被替换后的版本，节点被删除时返回null
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <N : BaseTreeNode> current(node: N?): N? {
+        var current: BaseTreeNode? = node
+        while (current != null && replacements.containsKey(current)) {
+            current = replacements[current]
+        }
+        return current as N?
+    }
+
+    /**
+     * 使用另一个节点替换目标节点
+     *
+     * @param target 目标节点，必须是当前版本
+     * @param replacement 替换后的节点
+     */
+    fun replace(target: BaseTreeNode, replacement: BaseTreeNode) {
+        replacements[target] = replacement
+        edits.add(Replace(target, replacement))
+        markModified(target)
+    }
+
+    /**
+     * 删除目标节点
+     *
+     * @param target 目标节点，必须是当前版本
+     */
+    fun delete(target: BaseTreeNode) {
+        replacements[target] = null
+        edits.add(Delete(target))
+        markModified(target)
+    }
+
+    /**
+     * 标记节点及其所有上级节点的内容已被修改，合并器向容器中放入新增节点后需要调用
+     */
+    fun markModified(node: BaseTreeNode) {
+        var current: BaseTreeNode? = node
+        // 已经标记过的节点，其上级节点也一定已经标记过
+        while (current != null && modifiedNodes.add(current)) {
+            current = current.parent
+        }
+    }
+
+    /**
+     * MOD的子树是否不会带来任何修改，满足以下任意一个条件时可以跳过整棵子树的对比：
+     * - 与原版的子树相同：MOD没有修改这部分内容
+     * - 与base的子树相同，并且base的子树在之前的对比中没有被修改过（缓存的哈希仍然有效）
+     *
+     * @param originalNode 原版中对应的节点，原版不存在时为null
+     * @param baseNode base中对应节点的当前版本
+     * @param modNode MOD中的节点
+     */
+    fun isUnchanged(originalNode: BaseTreeNode?, baseNode: BaseTreeNode, modNode: BaseTreeNode): Boolean {
+        val modHash = modNode.contentHash
+        if (originalNode != null && originalNode.contentHash == modHash) {
+            return true
+        }
+        return !modifiedNodes.contains(baseNode) && baseNode.contentHash == modHash
+    }
+
+    /**
+     * 获取紧跟在节点之后的插入位置
+     *
+     * 对于新增的节点，返回它自身的插入位置，之后插入的内容会排在它后面
+     */
+    fun positionAfter(node: BaseTreeNode): InsertPosition {
+        return insertPositions[node] ?: InsertPosition(node.tokenStream, node.stopTokenIndex + 1)
+    }
+
+    /**
+     * 在指定位置插入新节点，与 [TokenStreamRewriter.insertBefore] 一致，同一轮对比中后插入的内容排在前面
+     *
+     * @param position 插入位置
+     * @param newNode 新增的节点
+     * @param parts 插入的内容，节点会在生成结果时替换为节点的文本
+     */
+    fun insertBefore(position: InsertPosition, newNode: BaseTreeNode, vararg parts: Any) {
+        stepInserts.getOrPut(position) { ArrayDeque() }.addFirst(NodeText(parts))
+        insertPositions[newNode] = position
+    }
+
+    /**
+     * 在指定位置插入新节点，与 [TokenStreamRewriter.insertAfter] 一致，同一轮对比中后插入的内容排在后面
+     *
+     * @param position 插入位置
+     * @param newNode 新增的节点
+     * @param parts 插入的内容，节点会在生成结果时替换为节点的文本
+     */
+    fun insertAfter(position: InsertPosition, newNode: BaseTreeNode, vararg parts: Any) {
+        stepInserts.getOrPut(position) { ArrayDeque() }.addLast(NodeText(parts))
+        insertPositions[newNode] = position
+    }
+
+    /**
+     * 结束一轮对比，下一轮插入到同一位置的内容排在本轮之后
+     */
+    fun endStep() {
+        for ((position, texts) in stepInserts) {
+            inserts.getOrPut(position) { ArrayList() }.addAll(texts)
+        }
+        stepInserts.clear()
+    }
+
+    /**
+     * 应用所有修改，生成合并结果
+     *
+     * @param tokenStream 合并结果所基于的Token流（基准文件的Token流）
+     */
+    fun render(tokenStream: TokenStream): String {
+        endStep()
+        // 先插入后替换，被替换范围内的插入会被 TokenStreamRewriter 丢弃
+        for ((position, texts) in inserts) {
+            rewriterOf(position.tokenStream).insertBefore(position.index, NodeText(texts.toTypedArray()))
+        }
+        for (edit in edits) {
+            val target = edit.target
+            val rewriter = rewriterOf(target.tokenStream)
+            when (edit) {
+                is Replace -> rewriter.replace(target.startTokenIndex, target.stopTokenIndex, NodeText(arrayOf(edit.replacement)))
+                is Delete -> rewriter.delete(target.startTokenIndex, target.stopTokenIndex)
+            }
+        }
+        return rewriterOf(tokenStream).text
+    }
+
+    private fun rewriterOf(tokenStream: TokenStream): TokenStreamRewriter {
+        return rewriters.getOrPut(tokenStream) { TokenStreamRewriter(tokenStream) }
+    }
+
+    /**
+     * 延迟计算的文本，[TokenStreamRewriter] 输出时才会调用 [toString]
+     */
+    private inner class NodeText(private val parts: Array<out Any>) {
+        override fun toString(): String {
+            val builder = StringBuilder()
+            for (part in parts) {
+                if (part is BaseTreeNode) {
+                    val rewriter = rewriters[part.tokenStream]
+                    builder.append(
+                        rewriter?.getText(Interval.of(part.startTokenIndex, part.stopTokenIndex)) ?: part.sourceText
+                    )
+                } else {
+                    builder.append(part)
+                }
+            }
+            return builder.toString()
+        }
+    }
+}
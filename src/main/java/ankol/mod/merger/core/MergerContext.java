@@ -1,7 +1,15 @@
 package ankol.mod.merger.core;
 
+import ankol.mod.merger.constants.UserChoice;
+import ankol.mod.merger.merger.ConflictRecord;
 import lombok.Data;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 @Data
 public class MergerContext {
     /**
@@ -25,4 +33,21 @@ public class MergerContext {
      * 当为true时，第一个MOD相对于data0.pak的修改应该被自动接受，不提示冲突
      */
     private boolean isFirstModMergeWithBaseMod = false;
+    /**
+     * 上一次合并同一文件时用户做出的冲突选择（冲突标识 -> 选择），增量合并时相同的冲突不再重复询问
+     */
+    private Map<String, UserChoice> recordedChoices = Collections.emptyMap();
+    /**
+     * 本次合并中已解决的冲突选择（冲突标识 -> 选择），合并完成后写入合并清单
+     */
+    private final Map<String, UserChoice> resolvedChoices = new LinkedHashMap<>();
+    /**
+     * 是否延后处理需要用户选择的冲突
+     * 为true时合并过程中不提示用户，遇到需要用户选择的冲突时停止合并，冲突记录在 pendingConflicts 中，由调用方统一询问后重新合并
+     */
+    private boolean deferConflicts = false;
+    /**
+     * 延后处理、等待用户选择的冲突
+     */
+    private final List<ConflictRecord> pendingConflicts = new ArrayList<>();
 }
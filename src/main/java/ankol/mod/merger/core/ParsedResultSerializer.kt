@@ -0,0 +1,238 @@
+package ankol.mod.merger.core
+
+import ankol.mod.merger.merger.json.node.*
+import ankol.mod.merger.merger.scr.node.ScrContainerScriptNode
+import ankol.mod.merger.merger.scr.node.ScrFunCallScriptNode
+import ankol.mod.merger.merger.scr.node.ScrLeafScriptNode
+import ankol.mod.merger.merger.xml.node.XmlContainerNode
+import ankol.mod.merger.merger.xml.node.XmlLeafNode
+import ankol.mod.merger.merger.xml.node.XmlNode
+import org.antlr.v4.runtime.*
+import org.antlr.v4.runtime.misc.Pair
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+
+/**
+ * 语法树解析结果的二进制序列化工具
+ *
+ * 保存内容包括：原始文本、完整的Token列表（类型、通道、位置）以及节点树，
+ * 还原时不需要再经过词法/语法分析，还原出的Token流与节点的Token索引和原始解析结果完全一致
+ *
+ * @author Ankol
+ */
+object ParsedResultSerializer {
+    private const val NULL_NODE = 0
+    private const val SCR_CONTAINER = 1
+    private const val SCR_FUN_CALL = 2
+    private const val SCR_LEAF = 3
+    private const val XML_CONTAINER = 4
+    private const val XML_LEAF = 5
+    private const val JSON_CONTAINER = 6
+    private const val JSON_ARRAY = 7
+    private const val JSON_PAIR = 8
+    private const val JSON_LEAF = 9
+
+    /**
+     * 写出解析结果
+     *
+     * @param output 输出流
+     * @param content 解析使用的原始文本
+     * @param result 解析结果
+     */
+    fun write(output: DataOutputStream, content: String, result: ParsedResult<*>) {
+        writeString(output, content)
+        val tokenStream = result.tokenStream
+        if (tokenStream is BufferedTokenStream) {
+            tokenStream.fill()
+        }
+        output.writeInt(tokenStream.size())
+        for (i in 0 until tokenStream.size()) {
+            val token = tokenStream.get(i)
+            output.writeInt(token.type)
+            output.writeInt(token.channel)
+            output.writeInt(token.startIndex)
+            output.writeInt(token.stopIndex)
+            output.writeInt(token.line)
+            output.writeInt(token.charPositionInLine)
+        }
+        writeNode(output, result.astNode)
+    }
+
+    /**
+     * 读取解析结果
+     */
+    fun read(input: DataInputStream): ParsedResult<BaseTreeNode> {
+        val charStream = CharStreams.fromString(readString(input))
+        val source = Pair<TokenSource, CharStream>(null, charStream)
+        val tokenCount = input.readInt()
+        val tokens = ArrayList<Token>(tokenCount)
+        repeat(tokenCount) {
+            val token = CommonToken(source, input.readInt(), input.readInt(), input.readInt(), input.readInt())
+            token.line = input.readInt()
+            token.charPositionInLine = input.readInt()
+            tokens.add(token)
+        }
+        val tokenStream = CommonTokenStream(ListTokenSource(tokens))
+        tokenStream.fill()
+        return ParsedResult(readNode(input, tokenStream), tokenStream)
+    }
+
+    private fun writeNode(output: DataOutputStream, node: BaseTreeNode?) {
+        when (node) {
+            null -> output.writeByte(NULL_NODE)
+            is ScrContainerScriptNode -> {
+                writeNodeHeader(output, SCR_CONTAINER, node)
+                writeChildren(output, node.childrens)
+            }
+
+            is ScrFunCallScriptNode -> {
+                writeNodeHeader(output, SCR_FUN_CALL, node)
+                output.writeInt(node.argumentSpans.size)
+                node.argumentSpans.forEach { output.writeInt(it) }
+            }
+
+            is ScrLeafScriptNode -> writeNodeHeader(output, SCR_LEAF, node)
+            is XmlContainerNode -> {
+                writeNodeHeader(output, XML_CONTAINER, node)
+                writeAttributes(output, node.attributes)
+                writeChildren(output, node.childrens)
+            }
+
+            is XmlLeafNode -> {
+                writeNodeHeader(output, XML_LEAF, node)
+                writeAttributes(output, node.attributes)
+            }
+
+            is JsonContainerNode -> {
+                writeNodeHeader(output, JSON_CONTAINER, node)
+                writeChildren(output, node.childrens)
+            }
+
+            is JsonArrayNode -> {
+                writeNodeHeader(output, JSON_ARRAY, node)
+                val elements = node.getElements()
+                output.writeInt(elements.size)
+                elements.forEach { writeNode(output, it) }
+            }
+
+            is JsonPairNode -> {
+                writeNodeHeader(output, JSON_PAIR, node)
+                writeNode(output, node.value)
+            }
+
+            is JsonLeafNode -> writeNodeHeader(output, JSON_LEAF, node)
+            else -> throw IllegalArgumentException("Unsupported node type: ${node.javaClass.name}")
+        }
+    }
+
+    private fun readNode(input: DataInputStream, tokenStream: CommonTokenStream): BaseTreeNode? {
+        val type = input.readByte().toInt()
+        if (type == NULL_NODE) {
+            return null
+        }
+        val signature = readString(input)
+        val startTokenIndex = input.readInt()
+        val stopTokenIndex = input.readInt()
+        val lineNumber = input.readInt()
+        return when (type) {
+            SCR_CONTAINER -> ScrContainerScriptNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream).also {
+                readChildren(input, tokenStream, it, it.childrens)
+            }
+
+            SCR_FUN_CALL -> {
+                val argumentSpans = IntArray(input.readInt()) { input.readInt() }
+                ScrFunCallScriptNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream, argumentSpans)
+            }
+
+            SCR_LEAF -> ScrLeafScriptNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream)
+            XML_CONTAINER -> {
+                val attributes = readAttributes(input)
+                XmlContainerNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream, attributes).also {
+                    readChildren(input, tokenStream, it, it.childrens)
+                }
+            }
+
+            XML_LEAF -> XmlLeafNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream, readAttributes(input))
+            JSON_CONTAINER -> JsonContainerNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream).also {
+                readChildren(input, tokenStream, it, it.childrens)
+            }
+
+            JSON_ARRAY -> JsonArrayNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream).also { node ->
+                repeat(input.readInt()) { readNode(input, tokenStream)?.let { node.addElement(it) } }
+            }
+
+            JSON_PAIR -> JsonPairNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream).also {
+                it.value = readNode(input, tokenStream)
+            }
+
+            JSON_LEAF -> JsonLeafNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream)
+            else -> throw IOException("Unknown node type: $type")
+        }
+    }
+
+    private fun writeNodeHeader(output: DataOutputStream, type: Int, node: BaseTreeNode) {
+        output.writeByte(type)
+        writeString(output, node.signature)
+        output.writeInt(node.startTokenIndex)
+        output.writeInt(node.stopTokenIndex)
+        output.writeInt(node.lineNumber)
+    }
+
+    /**
+     * 子节点按原有顺序与原有的key写出，key不一定等于节点当前的签名
+     */
+    private fun writeChildren(output: DataOutputStream, childrens: Map<String, BaseTreeNode>) {
+        output.writeInt(childrens.size)
+        for ((key, child) in childrens) {
+            writeString(output, key)
+            writeNode(output, child)
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <N : BaseTreeNode> readChildren(
+        input: DataInputStream,
+        tokenStream: CommonTokenStream,
+        parent: BaseTreeNode,
+        childrens: MutableMap<String, N>
+    ) {
+        repeat(input.readInt()) {
+            val key = SignatureInterner.intern(readString(input))
+            val node = readNode(input, tokenStream) as N
+            node.parent = parent
+            childrens[key] = node
+        }
+    }
+
+    private fun writeAttributes(output: DataOutputStream, attributes: Map<String, String>) {
+        output.writeInt(attributes.size)
+        for ((key, value) in attributes) {
+            writeString(output, key)
+            writeString(output, value)
+        }
+    }
+
+    private fun readAttributes(input: DataInputStream): MutableMap<String, String> {
+        val attributes = LinkedHashMap<String, String>()
+        repeat(input.readInt()) {
+            attributes[readString(input)] = readString(input)
+        }
+        return attributes
+    }
+
+    /**
+     * 写出字符串，[DataOutputStream.writeUTF] 限制长度为64KB，这里使用长度 + UTF-8 字节的格式
+     */
+    private fun writeString(output: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+}
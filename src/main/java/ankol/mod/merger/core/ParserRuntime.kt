@@ -0,0 +1,236 @@
+package ankol.mod.merger.core
+
+import ankol.mod.merger.tools.logger
+import org.antlr.v4.runtime.BailErrorStrategy
+import org.antlr.v4.runtime.DefaultErrorStrategy
+import org.antlr.v4.runtime.Lexer
+import org.antlr.v4.runtime.Parser
+import org.antlr.v4.runtime.Recognizer
+import org.antlr.v4.runtime.atn.*
+import org.antlr.v4.runtime.dfa.DFA
+import org.antlr.v4.runtime.misc.ParseCancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * ANTLR解析运行时
+ *
+ * 所有合并器都通过这里执行语法分析，采用两阶段解析：
+ * 1. 先使用 SLL 预测模式 + [BailErrorStrategy]，绝大多数文件在这一阶段就能完成解析，速度明显快于完整的 LL 预测
+ * 2. SLL 阶段失败（语法错误或者 SLL 无法处理的歧义）时，重置Token流，使用默认的 LL 模式和错误恢复策略重新解析
+ *
+ * 两个阶段得到的语法树完全一致，LL 阶段的报错与之前直接使用 LL 解析时相同。
+ *
+ * 同时统一管理每个语法的 DFA 缓存与 [PredictionContextCache]：
+ * - 所有词法分析器和语法分析器实例共享同一份缓存，第一个文件就能用上之前解析积累的 DFA
+ * - 启动时可以通过 [warmUp] 解析内置的样例文件提前填充缓存
+ * - DFA 状态数超过 [maxDfaStates] 时丢弃该语法的缓存重新积累，避免内存无限增长
+ *
+ * @author Ankol
+ */
+object ParserRuntime {
+    private val log = logger()
+
+    // 内存估算使用的对象大小（字节）
+    private const val DFA_STATE_BYTES = 64
+    private const val REFERENCE_BYTES = 4
+    private const val CONFIG_BYTES = 40
+    private const val CONTEXT_BYTES = 48
+
+    /**
+     * 每个语法的解析统计
+     */
+    class Statistics {
+        /**
+         * 解析次数
+         */
+        val parses = AtomicLong()
+
+        /**
+         * 回退到 LL 模式的次数
+         */
+        val fallbacks = AtomicLong()
+    }
+
+    /**
+     * 语法文件名 -> 解析统计
+     */
+    private val statistics = ConcurrentHashMap<String, Statistics>()
+
+    /**
+     * 单个语法的 DFA 缓存，同一个语法的所有分析器实例共享
+     */
+    private class DfaCache(atn: ATN) {
+        val decisionToDFA = Array(atn.numberOfDecisions) { DFA(atn.getDecisionState(it), it) }
+        val contextCache = PredictionContextCache()
+    }
+
+    /**
+     * 分析器类名（词法分析器与语法分析器分开） -> DFA 缓存
+     */
+    private val dfaCaches = ConcurrentHashMap<String, DfaCache>()
+
+    /**
+     * 单个分析器的 DFA 状态数上限，超过后丢弃缓存
+     */
+    @Volatile
+    var maxDfaStates = 200_000
+
+    /**
+     * DFA 缓存的统计信息
+     *
+     * @param dfaStates DFA 状态数
+     * @param contextCacheSize [PredictionContextCache] 中的上下文数量
+     * @param estimatedBytes 估算的内存占用（字节）
+     */
+    data class CacheStatistics(val dfaStates: Int, val contextCacheSize: Int, val estimatedBytes: Long)
+
+    /**
+     * 让词法分析器使用共享的 DFA 缓存，需要在创建Token流之前调用
+     *
+     * @return 传入的词法分析器
+     */
+    fun <L : Lexer> lexer(lexer: L): L {
+        val cache = cacheOf(lexer)
+        lexer.interpreter = LexerATNSimulator(lexer, lexer.atn, cache.decisionToDFA, cache.contextCache)
+        return lexer
+    }
+
+    /**
+     * 两阶段解析
+     *
+     * @param parser 新创建的语法分析器，Token流需要是可以回退的 [org.antlr.v4.runtime.BufferedTokenStream]
+     * @param entry 入口规则，例如 `{ it.file() }`
+     * @return 入口规则返回的语法树
+     */
+    fun <P : Parser, T> parse(parser: P, entry: (P) -> T): T {
+        val stats = statistics.computeIfAbsent(parser.grammarFileName) { Statistics() }
+        stats.parses.incrementAndGet()
+        val cache = cacheOf(parser)
+        parser.interpreter = ParserATNSimulator(parser, parser.atn, cache.decisionToDFA, cache.contextCache)
+        try {
+            return parseTwoStage(parser, stats, entry)
+        } finally {
+            trimCache(parser)
+            (parser.tokenStream?.tokenSource as? Lexer)?.let { trimCache(it) }
+        }
+    }
+
+    private fun <P : Parser, T> parseTwoStage(parser: P, stats: Statistics, entry: (P) -> T): T {
+
+        // 第一阶段：SLL，遇到错误立即放弃，不输出错误信息
+        val listeners = parser.errorListeners.toList()
+        parser.removeErrorListeners()
+        parser.errorHandler = BailErrorStrategy()
+        parser.interpreter.predictionMode = PredictionMode.SLL
+        try {
+            return entry(parser)
+        } catch (_: ParseCancellationException) {
+            stats.fallbacks.incrementAndGet()
+        }
+
+        // 第二阶段：LL，使用默认的错误恢复策略完整解析
+        log.debug("SLL parsing failed for grammar {}, falling back to LL.", parser.grammarFileName)
+        parser.reset() //同时会把Token流回退到开头
+        listeners.forEach { parser.addErrorListener(it) }
+        parser.errorHandler = DefaultErrorStrategy()
+        parser.interpreter.predictionMode = PredictionMode.LL
+        return entry(parser)
+    }
+
+    /**
+     * 使用内置的样例文件预热解析器，样例文件位于资源目录 warmup/ 下
+     *
+     * @param sampleName 样例文件名，例如 `sample.scr`
+     * @param parse 解析样例内容的方法
+     */
+    fun warmUp(sampleName: String, parse: (String) -> Unit) {
+        val stream = ParserRuntime::class.java.getResourceAsStream("/warmup/$sampleName")
+        if (stream == null) {
+            log.warn("Warm-up sample '{}' not found, skipped.", sampleName)
+            return
+        }
+        val content = stream.use { String(it.readAllBytes(), Charsets.UTF_8) }
+        try {
+            parse(content)
+        } catch (e: Exception) {
+            log.warn("Failed to warm up parser with sample '{}'. Reason: {}", sampleName, e.message)
+        }
+    }
+
+    /**
+     * 清空所有 DFA 缓存，之后的解析重新积累
+     */
+    fun clearCaches() {
+        dfaCaches.clear()
+    }
+
+    private fun cacheOf(recognizer: Recognizer<*, *>): DfaCache {
+        return dfaCaches.computeIfAbsent(recognizer.javaClass.simpleName) { DfaCache(recognizer.atn) }
+    }
+
+    /**
+     * DFA 状态数超过上限时丢弃该分析器的缓存，正在使用旧缓存的分析器不受影响
+     */
+    private fun trimCache(recognizer: Recognizer<*, *>) {
+        val name = recognizer.javaClass.simpleName
+        val cache = dfaCaches[name] ?: return
+        var states = 0
+        for (dfa in cache.decisionToDFA) {
+            states += synchronized(dfa.states) { dfa.states.size }
+        }
+        if (states > maxDfaStates && dfaCaches.remove(name, cache)) {
+            log.info("DFA cache of {} reached {} states, cleared.", name, states)
+        }
+    }
+
+    /**
+     * 获取各分析器的 DFA 缓存统计（分析器类名 -> 统计）
+     *
+     * 内存占用按每个状态的配置数量和边的数量粗略估算，仅供参考
+     */
+    fun getCacheStatistics(): Map<String, CacheStatistics> {
+        val result = sortedMapOf<String, CacheStatistics>()
+        for ((name, cache) in dfaCaches) {
+            var states = 0
+            var bytes = 0L
+            for (dfa in cache.decisionToDFA) {
+                synchronized(dfa.states) {
+                    states += dfa.states.size
+                    for (state in dfa.states.keys) {
+                        bytes += DFA_STATE_BYTES + (state.edges?.size ?: 0) * REFERENCE_BYTES
+                        bytes += (state.configs?.size ?: 0) * CONFIG_BYTES
+                    }
+                }
+            }
+            val contexts = cache.contextCache.size()
+            result[name] = CacheStatistics(states, contexts, bytes + contexts.toLong() * CONTEXT_BYTES)
+        }
+        return result
+    }
+
+    /**
+     * 获取各语法的解析统计（语法文件名 -> 统计）
+     */
+    fun getStatistics(): Map<String, Statistics> {
+        return statistics.toSortedMap()
+    }
+
+    /**
+     * 输出解析统计到日志
+     */
+    fun logStatistics() {
+        for ((grammar, stats) in getStatistics()) {
+            log.info(
+                "Parser statistics of {}: {} parses, {} fell back from SLL to LL.",
+                grammar, stats.parses.get(), stats.fallbacks.get()
+            )
+        }
+        for ((name, cache) in getCacheStatistics()) {
+            log.info(
+                "DFA cache of {}: {} states, {} prediction contexts, about {} KB.",
+                name, cache.dfaStates, cache.contextCacheSize, cache.estimatedBytes / 1024
+            )
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package ankol.mod.merger.core
+
+/**
+ * 节点签名的驻留表
+ *
+ * 同一个文件的原版、基准文件与各个MOD版本中相同的签名共用同一个字符串实例：
+ * 字符串的hash值只计算一次并缓存在实例上，三方对比时子节点查找的equals可以直接通过引用比较返回，
+ * 不需要再逐字符比较长签名。
+ *
+ * 驻留表只在 [scoped] 执行期间对当前线程生效（一次 [AbstractFileMerger.mergeAll] 解析的所有语法树），
+ * 结束后随之释放，不会在整个合并过程中持有所有文件的签名，也不需要在线程之间同步。
+ * 不在作用范围内创建的节点直接使用原字符串。
+ *
+ * @author Ankol
+ */
+object SignatureInterner {
+    private val currentTable = ThreadLocal<HashMap<String, String>>()
+
+    /**
+     * 在新的驻留表中执行 [action]，已经在作用范围内时沿用当前的驻留表
+     */
+    fun <T> scoped(action: () -> T): T {
+        if (currentTable.get() != null) {
+            return action()
+        }
+        currentTable.set(HashMap())
+        try {
+            return action()
+        } finally {
+            currentTable.remove()
+        }
+    }
+
+    /**
+     * 获取签名的规范实例
+     */
+    fun intern(signature: String): String {
+        val table = currentTable.get() ?: return signature
+        return table.putIfAbsent(signature, signature) ?: signature
+    }
+}
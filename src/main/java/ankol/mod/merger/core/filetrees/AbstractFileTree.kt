@@ -1,5 +1,8 @@
 package ankol.mod.merger.core.filetrees
 
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
+
 /**
  * 抽象文件树，表示文件在某个压缩包中的位置
  * @param fileName 文件名（不带路径）
@@ -9,13 +12,20 @@ package ankol.mod.merger.core.filetrees
 abstract class AbstractFileTree(
     var fileName: String,
     var fileEntryName: String,
-    var archiveFileNames: MutableList<String> = mutableListOf()
+    var archiveFileNames: List<String> = emptyList()
 ) {
     /**
      * 获取文件内容
      */
     abstract fun getContent(): String
 
+    /**
+     * 打开文件内容的字符流，供语法分析使用
+     */
+    open fun openCharStream(): CharStream {
+        return CharStreams.fromString(getContent(), fileName)
+    }
+
     fun getFullArchiveFileName(): String {
         return archiveFileNames.joinToString(" -> ")
     }
@@ -0,0 +1,199 @@
+package ankol.mod.merger.core.filetrees
+
+import ankol.mod.merger.tools.ChannelRangeInputStream
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry
+import org.apache.commons.compress.archivers.zip.ZipMethod
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import kotlin.math.min
+
+/**
+ * 压缩包条目来源，直接指向压缩包中某个条目的压缩数据（本地文件头偏移量 + 压缩后长度）
+ *
+ * 文件不需要先解压到临时目录，读取时按偏移量从压缩包中定位读取并按需解压。
+ * 读取到内存中的嵌套压缩包，条目直接引用内存中的压缩包数据 [inMemoryArchive]
+ *
+ * @param archivePath 条目所在的压缩包路径（磁盘上的真实文件），压缩包在内存中时为最外层的MOD文件，仅用于提示
+ * @param entryName 条目在压缩包中的相对路径
+ * @param localHeaderOffset 本地文件头在压缩包中的偏移量
+ * @param compressedSize 压缩后的长度
+ * @param size 解压后的长度
+ * @param method 压缩方法，见 [ZipMethod]
+ * @param crc 条目的 CRC-32 校验值
+ * @param inMemoryArchive 条目所在的压缩包已读取到内存中时为压缩包数据，偏移量相对于该数据
+ * @author Ankol
+ */
+data class ArchiveEntrySource(
+    val archivePath: Path,
+    val entryName: String,
+    val localHeaderOffset: Long,
+    val compressedSize: Long,
+    val size: Long,
+    val method: Int,
+    val crc: Long,
+    val inMemoryArchive: ByteArray? = null
+) {
+    companion object {
+        private const val LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50
+        private const val LOCAL_FILE_HEADER_SIZE = 30
+
+        /**
+         * 判断条目是否可以不经解压直接由压缩包提供数据
+         * 目前只支持 STORED 与 DEFLATED 两种压缩方式，且不支持加密条目
+         */
+        fun isSupported(entry: ZipArchiveEntry): Boolean {
+            if (entry.generalPurposeBit.usesEncryption()) {
+                return false
+            }
+            return entry.method == ZipMethod.STORED.code || entry.method == ZipMethod.DEFLATED.code
+        }
+
+        /**
+         * 根据中央目录中的条目创建来源信息，不会读取本地文件头
+         *
+         * @param archivePath 压缩包路径
+         * @param entry 压缩包条目
+         * @param baseOffset 条目所在的压缩包在 [archivePath] 中的起始偏移量，
+         * 嵌套压缩包以 STORED 方式保存在外层压缩包中时不为0
+         * @param inMemoryArchive 压缩包已读取到内存中时为压缩包数据
+         */
+        fun of(
+            archivePath: Path,
+            entry: ZipArchiveEntry,
+            baseOffset: Long = 0,
+            inMemoryArchive: ByteArray? = null
+        ): ArchiveEntrySource {
+            return ArchiveEntrySource(
+                archivePath,
+                entry.name,
+                baseOffset + entry.localHeaderOffset,
+                entry.compressedSize,
+                entry.size,
+                entry.method,
+                entry.crc,
+                inMemoryArchive
+            )
+        }
+    }
+
+    /**
+     * 压缩数据在压缩包中的起始偏移量
+     * 中央目录中只记录了本地文件头的位置，首次使用时读取本地文件头计算得出
+     */
+    val dataOffset: Long
+        get() {
+            if (resolvedDataOffset >= 0) {
+                return resolvedDataOffset
+            }
+            inMemoryArchive?.let { memory -> return resolveDataOffset { dst, position -> readMemory(memory, dst, position) } }
+            return FileChannel.open(archivePath).use { resolveDataOffset(it::read) }
+        }
+
+    @Volatile
+    private var resolvedDataOffset = -1L
+
+    /**
+     * 打开原始（未解压的）数据流
+     */
+    fun openRawStream(): InputStream {
+        inMemoryArchive?.let { memory ->
+            return ByteArrayInputStream(memory, Math.toIntExact(dataOffset), Math.toIntExact(compressedSize))
+        }
+        val channel = FileChannel.open(archivePath)
+        try {
+            return ChannelRangeInputStream(channel, resolveDataOffset(channel::read), compressedSize)
+        } catch (e: Exception) {
+            channel.close()
+            throw e
+        }
+    }
+
+    /**
+     * 使用共享的文件通道打开原始数据流，关闭流时不会关闭通道；压缩包在内存中时不使用通道
+     */
+    fun openRawStream(channel: FileChannel): InputStream {
+        if (inMemoryArchive != null) {
+            return openRawStream()
+        }
+        return ChannelRangeInputStream(channel, resolveDataOffset(channel::read), compressedSize, closeChannel = false)
+    }
+
+    /**
+     * 打开解压后的数据流
+     */
+    fun openStream(): InputStream {
+        return decode(openRawStream())
+    }
+
+    /**
+     * 使用共享的文件通道打开解压后的数据流，通道使用定位读取，可以被多个线程同时使用
+     */
+    fun openStream(channel: FileChannel): InputStream {
+        return decode(openRawStream(channel))
+    }
+
+    private fun decode(raw: InputStream): InputStream {
+        return when (method) {
+            ZipMethod.STORED.code -> raw
+            // nowrap 模式下 zlib 需要在输入末尾多提供一个哑字节
+            ZipMethod.DEFLATED.code -> {
+                val inflater = Inflater(true)
+                object : InflaterInputStream(SequenceInputStream(raw, ByteArrayInputStream(ByteArray(1))), inflater) {
+                    override fun close() {
+                        try {
+                            super.close()
+                        } finally {
+                            inflater.end() //自定义的Inflater不会被自动释放
+                        }
+                    }
+                }
+            }
+
+            else -> {
+                raw.close()
+                throw IllegalStateException("Unsupported compression method $method for entry: $entryName")
+            }
+        }
+    }
+
+    /**
+     * 读取本地文件头，跳过文件名与扩展字段后即为压缩数据的起始位置，结果只计算一次
+     *
+     * @param read 定位读取，参数与 [FileChannel.read] 相同
+     */
+    private fun resolveDataOffset(read: (ByteBuffer, Long) -> Int): Long {
+        if (resolvedDataOffset >= 0) {
+            return resolvedDataOffset
+        }
+        val header = ByteBuffer.allocate(LOCAL_FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        while (header.hasRemaining()) {
+            if (read(header, localHeaderOffset + header.position()) == -1) {
+                throw IOException("Unexpected end of archive while reading local file header of entry: $entryName")
+            }
+        }
+        if (header.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) {
+            throw IOException("Invalid local file header of entry: $entryName")
+        }
+        val fileNameLength = header.getShort(26).toInt() and 0xFFFF
+        val extraFieldLength = header.getShort(28).toInt() and 0xFFFF
+        resolvedDataOffset = localHeaderOffset + LOCAL_FILE_HEADER_SIZE + fileNameLength + extraFieldLength
+        return resolvedDataOffset
+    }
+
+    private fun readMemory(memory: ByteArray, dst: ByteBuffer, position: Long): Int {
+        if (position >= memory.size) {
+            return -1
+        }
+        val length = min(dst.remaining().toLong(), memory.size - position).toInt()
+        dst.put(memory, position.toInt(), length)
+        return length
+    }
+}
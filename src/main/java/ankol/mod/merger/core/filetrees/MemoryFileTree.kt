@@ -8,7 +8,7 @@ package ankol.mod.merger.core.filetrees
 class MemoryFileTree(
     fileName: String,
     fileEntryName: String,
-    archiveFileName: MutableList<String>,
+    archiveFileName: List<String>,
     private val contentStr: String
 ) : AbstractFileTree(fileName, fileEntryName, archiveFileName) {
 
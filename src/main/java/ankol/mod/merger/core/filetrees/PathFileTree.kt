@@ -1,26 +1,152 @@
 package ankol.mod.merger.core.filetrees
 
+import ankol.mod.merger.tools.Tools
+import org.antlr.v4.runtime.CharStream
+import org.antlr.v4.runtime.CharStreams
+import java.io.ByteArrayInputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.charset.CodingErrorAction
 import java.nio.file.Files
 import java.nio.file.Path
+import java.security.DigestInputStream
+import java.security.MessageDigest
 
 /**
  * 路径文件树，当文件是在某文件路径时的表示
+ *
+ * 文件内容有两种来源：已解压到磁盘上的 [fullPathName]，或者直接指向压缩包条目的 [entrySource]
  * @param fileHash 文件hash值
  * @author Ankol
  */
 class PathFileTree(
     fileName: String,
     fileEntryName: String,
-    archiveFileName: MutableList<String>,
+    archiveFileName: List<String>,
     var fileHash: String? = null,
     /**
      * 解压出来后的文件路径
      */
-    var fullPathName: Path? = null
+    var fullPathName: Path? = null,
+    /**
+     * 未解压时，文件在压缩包中的位置
+     */
+    var entrySource: ArchiveEntrySource? = null
 ) : AbstractFileTree(fileName, fileEntryName, archiveFileName) {
+    companion object {
+        /**
+         * 解码字符流时每次读取的字节数
+         */
+        private const val DECODE_BUFFER_SIZE = 16 * 1024
+    }
+
+    /**
+     * 已解压文件在原压缩包中记录的CRC-32校验值
+     */
+    var archiveCrc: Long? = null
 
+    /**
+     * 预读到内存中的文件内容，见 [preload]
+     */
+    @Volatile
+    private var preloadedBytes: ByteArray? = null
+
+    /**
+     * 读取文件内容，与 Files.readString 一致，内容不是合法的UTF-8时报错（合并失败，使用MOD原本的文件）
+     */
     override fun getContent(): String {
-        return fullPathName?.let { Files.readString(it) } ?: throw IllegalArgumentException("Error, fullPathName is null")
+        preloadedBytes?.let { return decode(it) }
+        fullPathName?.let { return Files.readString(it) }
+        return decode(openInputStream().use { it.readAllBytes() })
+    }
+
+    private fun decode(bytes: ByteArray): String {
+        return Charsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString()
+    }
+
+    /**
+     * 直接从文件（或压缩包条目）解码字符流，不会生成完整的中间字符串
+     *
+     * 与 [getContent] 一致，内容不是合法的UTF-8时报错
+     */
+    override fun openCharStream(): CharStream {
+        preloadedBytes?.let { bytes ->
+            return Channels.newChannel(ByteArrayInputStream(bytes)).use {
+                CharStreams.fromChannel(it, Charsets.UTF_8, DECODE_BUFFER_SIZE, CodingErrorAction.REPORT, fileName, bytes.size.toLong())
+            }
+        }
+        fullPathName?.let { path ->
+            return FileChannel.open(path).use {
+                CharStreams.fromChannel(it, Charsets.UTF_8, DECODE_BUFFER_SIZE, CodingErrorAction.REPORT, fileName, it.size())
+            }
+        }
+        return Channels.newChannel(openInputStream()).use {
+            CharStreams.fromChannel(it, Charsets.UTF_8, DECODE_BUFFER_SIZE, CodingErrorAction.REPORT, fileName, getSize())
+        }
+    }
+
+    /**
+     * 打开文件内容的输入流
+     */
+    fun openInputStream(): InputStream {
+        preloadedBytes?.let { return ByteArrayInputStream(it) }
+        fullPathName?.let { return Files.newInputStream(it) }
+        entrySource?.let { return it.openStream() }
+        throw IllegalArgumentException("Error, both fullPathName and entrySource are null")
+    }
+
+    /**
+     * 把文件内容读取到内存中，之后的读取不再访问磁盘，使用完后需要调用 [release] 释放
+     */
+    fun preload() {
+        if (preloadedBytes == null) {
+            preloadedBytes = openInputStream().use { it.readAllBytes() }
+        }
+    }
+
+    /**
+     * 释放 [preload] 读取的内容
+     */
+    fun release() {
+        preloadedBytes = null
+    }
+
+    /**
+     * 文件内容所在的磁盘文件：解压后的文件，或者条目所在的压缩包
+     */
+    fun storagePath(): Path {
+        fullPathName?.let { return it }
+        entrySource?.let { return it.archivePath }
+        throw IllegalArgumentException("Error, both fullPathName and entrySource are null")
+    }
+
+    /**
+     * 获取文件大小（解压后）
+     */
+    fun getSize(): Long {
+        fullPathName?.let { return Files.size(it) }
+        entrySource?.let { return it.size }
+        throw IllegalArgumentException("Error, both fullPathName and entrySource are null")
+    }
+
+    /**
+     * 获取文件的CRC-32校验值（来自压缩包目录，不需要读取文件内容），未知时返回null
+     */
+    fun getCrc(): Long? {
+        return entrySource?.crc ?: archiveCrc
+    }
+
+    /**
+     * 获取文件hash值，没有计算过的情况下读取一遍内容进行计算
+     */
+    fun getOrComputeHash(): String {
+        fileHash?.let { return it }
+        val digest = MessageDigest.getInstance("SHA-256")
+        DigestInputStream(openInputStream(), digest).use { it.transferTo(OutputStream.nullOutputStream()) }
+        return Tools.bytesToHex(digest.digest()).also { fileHash = it }
     }
 
     /**
@@ -2,6 +2,8 @@ package ankol.mod.merger.merger
 
 import ankol.mod.merger.constants.UserChoice
 import ankol.mod.merger.core.BaseTreeNode
+import ankol.mod.merger.tools.Tools
+import java.security.MessageDigest
 
 /**
  * 冲突类型
@@ -55,4 +57,29 @@ data class ConflictRecord(
      * 冲突类型
      */
     val conflictType: ConflictType = ConflictType.MODIFICATION,
-)
\ No newline at end of file
+) {
+    /**
+     * 冲突标识，由冲突类型、所在容器的签名路径、签名以及双方节点的原文计算得出，与MOD名称无关
+     *
+     * 两次合并中同一个文件出现标识相同的冲突时，可以直接沿用上一次的选择。
+     * 不同容器中内容完全相同的冲突标识不同，各自使用用户的选择
+     */
+    fun choiceKey(): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        digest.update(conflictType.name.toByteArray(Charsets.UTF_8))
+        digest.update(0)
+        // 从内到外依次加入上级节点的签名，以1结束
+        var container = baseNode.parent
+        while (container != null) {
+            digest.update(container.signature.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+            container = container.parent
+        }
+        digest.update(1)
+        for (part in arrayOf(signature, baseNode.sourceText, modNode?.sourceText ?: "")) {
+            digest.update(part.toByteArray(Charsets.UTF_8))
+            digest.update(0)
+        }
+        return Tools.bytesToHex(digest.digest())
+    }
+}
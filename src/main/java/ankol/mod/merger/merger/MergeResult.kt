@@ -5,5 +5,13 @@ package ankol.mod.merger.merger
  * 
  * @param mergedContent 合并后的脚本文本内容
  * @param hasConflicts  是否存在冲突（被处理的冲突）
+ * @param deferred      合并是否因为存在需要用户选择的冲突而中止（见 [ankol.mod.merger.core.MergerContext.deferConflicts]）
  */
-data class MergeResult(val mergedContent: String, val hasConflicts: Boolean)
\ No newline at end of file
+data class MergeResult(val mergedContent: String, val hasConflicts: Boolean, val deferred: Boolean = false) {
+    companion object {
+        /**
+         * 中止的合并，冲突记录在上下文中，等待用户选择后重新合并
+         */
+        val DEFERRED = MergeResult("", hasConflicts = true, deferred = true)
+    }
+}
\ No newline at end of file
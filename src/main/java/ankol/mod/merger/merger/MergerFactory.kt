@@ -1,12 +1,11 @@
 package ankol.mod.merger.merger
 
 import ankol.mod.merger.core.AbstractFileMerger
-import ankol.mod.merger.core.MergerContext
 import ankol.mod.merger.merger.json.TechlandJsonFileMerger
 import ankol.mod.merger.merger.scr.TechlandScrFileMerger
 import ankol.mod.merger.merger.xml.TechlandXmlFileMerger
+import ankol.mod.merger.tools.logger
 import java.util.*
-import java.util.concurrent.ConcurrentHashMap
 
 /**
  * 合并器获取工厂，通过判断文件扩展名来获取对应支持的合并器
@@ -14,23 +13,21 @@ import java.util.concurrent.ConcurrentHashMap
  * @author Ankol
  */
 object MergerFactory {
-    private val mergerMap: MutableMap<String, Class<out AbstractFileMerger>> = HashMap()
+    private val log = logger()
 
     /**
-     * 实例化后的实例存储在缓存里，不去反复构造实例
+     * 文件扩展名 -> 合并器实例
+     * 合并器是无状态的，同一个实例可以在多个线程之间共享，不需要反复构造
      */
-    private val mergerCache: MutableMap<Class<*>, AbstractFileMerger> = ConcurrentHashMap()
+    private val mergerMap: MutableMap<String, AbstractFileMerger> = HashMap()
 
     init {
         //.scr格式的合并器
-        registerMerger(TechlandScrFileMerger::class.java, ".scr", ".def", ".loot", ".phx", ".ppfx", ".ares", ".mpcloth")
+        registerMerger(TechlandScrFileMerger(), ".scr", ".def", ".loot", ".phx", ".ppfx", ".ares", ".mpcloth")
         //.xml文件的合并器
-        registerMerger(TechlandXmlFileMerger::class.java, ".xml")
+        registerMerger(TechlandXmlFileMerger(), ".xml")
         //json格式合并器
-        registerMerger(TechlandJsonFileMerger::class.java, ".gui")
-        /*Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            DebugTool.printCacheUseRate("mergerCache", (AbstractCache) mergerCache);
-        }));*/
+        registerMerger(TechlandJsonFileMerger(), ".gui")
     }
 
     /**
@@ -39,34 +36,29 @@ object MergerFactory {
      * @param merger     合并器实例。
      * @param extensions 要关联的文件扩展名（例如 ".txt", ".xml"）。
      */
-    private fun registerMerger(merger: Class<out AbstractFileMerger>, vararg extensions: String) {
+    private fun registerMerger(merger: AbstractFileMerger, vararg extensions: String) {
         for (ext in extensions) {
             mergerMap[ext.lowercase(Locale.getDefault())] = merger
         }
     }
 
+    /**
+     * 预热所有合并器的解析器
+     */
+    fun warmUp() {
+        val start = System.currentTimeMillis()
+        mergerMap.values.distinct().parallelStream().forEach { it.warmUp() }
+        log.info("Parsers warmed up in {}ms.", System.currentTimeMillis() - start)
+    }
+
     /**
      * 根据文件名获取对应的合并器。
-     * 
+     *
      * @param fileName 文件名（包含扩展名）
      * @return 一个包含合并器实例的 [Optional]；如果找不到合适的合并器，则为空。
      */
-    fun getMerger(fileName: String, context: MergerContext): Optional<AbstractFileMerger> {
+    fun getMerger(fileName: String): Optional<AbstractFileMerger> {
         val extension = "." + fileName.substringAfterLast(".")
-        val aClass = mergerMap[extension.lowercase(Locale.getDefault())]
-        if (aClass == null) {
-            return Optional.empty()
-        } else {
-            var fileMerger = mergerCache[aClass]
-            if (fileMerger == null) {
-                synchronized(MergerFactory::class.java) {
-                    fileMerger = aClass.getConstructor(context.javaClass).newInstance(context)
-                    mergerCache[aClass] = fileMerger
-                }
-            } else {
-                fileMerger.context = context
-            }
-            return Optional.of(fileMerger!!)
-        }
+        return Optional.ofNullable(mergerMap[extension.lowercase(Locale.getDefault())])
     }
-}
\ No newline at end of file
+}
@@ -5,9 +5,12 @@ import ankol.mod.merger.antlr.json.JSONParser
 import ankol.mod.merger.constants.UserChoice
 import ankol.mod.merger.core.AbstractFileMerger
 import ankol.mod.merger.core.BaseTreeNode
-import ankol.mod.merger.core.ConflictResolver.resolveConflict
+import ankol.mod.merger.core.MergeSession
+import ankol.mod.merger.core.MergedDocument
 import ankol.mod.merger.core.MergerContext
 import ankol.mod.merger.core.ParsedResult
+import ankol.mod.merger.core.ParserRuntime
+import ankol.mod.merger.core.SignatureInterner
 import ankol.mod.merger.core.filetrees.AbstractFileTree
 import ankol.mod.merger.exception.BusinessException
 import ankol.mod.merger.merger.ConflictRecord
@@ -17,82 +20,76 @@ import ankol.mod.merger.merger.json.node.JsonArrayNode
 import ankol.mod.merger.merger.json.node.JsonContainerNode
 import ankol.mod.merger.merger.json.node.JsonPairNode
 import ankol.mod.merger.tools.logger
+import org.antlr.v4.runtime.CharStream
 import org.antlr.v4.runtime.CharStreams
 import org.antlr.v4.runtime.CommonTokenStream
-import org.antlr.v4.runtime.TokenStreamRewriter
 
 /**
  * JSON文件合并器
  *
  * @author Ankol
  */
-class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(context) {
+class TechlandJsonFileMerger : AbstractFileMerger() {
     private val log = logger()
 
-    /**
-     * 冲突项列表
-     */
-    private val conflicts = ArrayList<ConflictRecord>()
-
     /**
      * 新增节点记录
      */
     private data class NewNodeRecord(
-        val parentContainer: BaseTreeNode,
+        val parentContainer: JsonContainerNode,
         val previousSibling: BaseTreeNode?,
+        val signature: String,
         val newNode: BaseTreeNode
     )
 
     /**
-     * 新增节点列表
-     */
-    private val newNodes = ArrayList<NewNodeRecord>()
-
-    /**
-     * 原始基准MOD对应文件的语法树
+     * JSON合并会话，额外记录新增节点
      */
-    private var originalBaseModRoot: BaseTreeNode? = null
+    private class JsonMergeSession(
+        context: MergerContext,
+        originalBaseModRoot: BaseTreeNode?,
+        val document: MergedDocument
+    ) : MergeSession<BaseTreeNode>(context, originalBaseModRoot) {
+        val newNodes = ArrayList<NewNodeRecord>()
+    }
 
-    override fun merge(file1: AbstractFileTree, file2: AbstractFileTree): MergeResult {
+    override fun mergeAll(base: AbstractFileTree, mods: List<AbstractFileTree>, context: MergerContext): MergeResult {
         try {
-            //解析基准文件
-            val parsedResult = context.baseModManager.parseForm(file1.fileEntryName) { parseContent(it) }
-            if (parsedResult != null) {
-                originalBaseModRoot = parsedResult.astNode
+            // 签名驻留表只在解析本文件的各个版本时使用，解析完成后释放
+            val (parsedResult, parsedFiles) = SignatureInterner.scoped {
+                //解析基准文件
+                val original = context.baseModManager.parseForm(base.fileEntryName) { parseContent(it) }
+                //依次解析base和所有mod文件，每个版本只解析一次（不同文件的合并已经在工作线程中并行执行）
+                original to (listOf(base) + mods).map { parseFile(it) }
             }
-            val baseResult = parseFile(file1)
-            val modResult = parseFile(file2)
+            val baseResult = parsedFiles[0]
             val baseRoot = baseResult.astNode!!
-            val modRoot = modResult.astNode!!
-            //深度对比
-            reduceCompare(originalBaseModRoot, baseRoot, modRoot)
-            //冲突解决
-            if (context.isFirstModMergeWithBaseMod && conflicts.isNotEmpty()) {
-                for (record in conflicts) {
-                    if (record.conflictType == ConflictType.REMOVAL) {
-                        // 删除类型冲突：MOD缺少原版节点，应该保留原版（补回缺失的代码）
-                        record.userChoice = UserChoice.BASE_MOD
-                    } else {
-                        // 普通修改冲突：使用MOD修改的版本
-                        record.userChoice = UserChoice.MERGE_MOD
-                    }
+            val document = MergedDocument()
+            val baseIsOriginal = context.isFirstModMergeWithBaseMod
+            var hasConflicts = false
+
+            for (i in mods.indices) {
+                prepareStep(context, base, mods, i, baseIsOriginal)
+                val session = JsonMergeSession(context, parsedResult?.astNode, document)
+                //深度对比，base为之前所有mod合并后的语法树
+                reduceCompare(session, session.originalBaseModRoot, baseRoot, parsedFiles[i + 1].astNode!!)
+                //冲突解决
+                if (!session.resolveConflicts()) {
+                    // 存在需要用户选择的冲突，之后的对比依赖用户的选择，等待统一处理后重新合并
+                    return MergeResult.DEFERRED
                 }
-            } else if (conflicts.isNotEmpty()) {
-                resolveConflict(conflicts)
+                applyChanges(session)
+                hasConflicts = hasConflicts || session.conflicts.isNotEmpty()
             }
-            return MergeResult(getMergedContent(baseResult), conflicts.isNotEmpty())
+            return MergeResult(document.render(baseResult.tokenStream), hasConflicts)
         } catch (e: Exception) {
-            log.error("Error during JSON file merge: ${file1.fileName} Reason: ${e.message}", e)
-            throw BusinessException("文件${file1.fileName}合并失败")
-        } finally {
-            // 清理状态，准备下一个文件合并
-            conflicts.clear()
-            newNodes.clear()
-            originalBaseModRoot = null
+            log.error("Error during JSON file merge: ${base.fileName} Reason: ${e.message}", e)
+            throw BusinessException("文件${base.fileName}合并失败")
         }
     }
 
     private fun reduceCompare(
+        session: JsonMergeSession,
         originalNode: BaseTreeNode?,
         baseNode: BaseTreeNode,
         modNode: BaseTreeNode
@@ -100,15 +97,15 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
         when (baseNode) {
             //对象节点
             is JsonContainerNode if modNode is JsonContainerNode -> {
-                compareContainers(originalNode as? JsonContainerNode, baseNode, modNode)
+                compareContainers(session, originalNode as? JsonContainerNode, baseNode, modNode)
             }
             //数组节点
             is JsonArrayNode if modNode is JsonArrayNode -> {
-                compareArrays(originalNode as? JsonArrayNode, baseNode, modNode)
+                compareArrays(session, originalNode as? JsonArrayNode, baseNode, modNode)
             }
             //叶子节点
             else -> {
-                compareLeafNodes(originalNode, baseNode, modNode)
+                compareLeafNodes(session, originalNode, baseNode, modNode)
             }
         }
     }
@@ -117,35 +114,42 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
      * 比较容器节点（JSON对象）
      */
     private fun compareContainers(
+        session: JsonMergeSession,
         originalContainer: JsonContainerNode?,
         baseContainer: JsonContainerNode,
         modContainer: JsonContainerNode
     ) {
+        // 子树哈希相同，MOD不会带来任何修改，跳过整棵子树
+        if (session.document.isUnchanged(originalContainer, baseContainer, modContainer)) {
+            return
+        }
         var previousSiblingInBase: BaseTreeNode? = null
 
         for ((signature, modChild) in modContainer.childrens) {
             val originalChild = originalContainer?.childrens?.get(signature)
-            val baseChild = baseContainer.childrens[signature]
+            val slot = baseContainer.childrens[signature]
+            val baseChild = session.document.current(slot)
 
             //不存在，新增
             if (baseChild == null) {
-                newNodes.add(NewNodeRecord(baseContainer, previousSiblingInBase, modChild))
+                session.newNodes.add(NewNodeRecord(baseContainer, previousSiblingInBase, signature, modChild))
             } else {
-                previousSiblingInBase = baseChild
+                //使用节点在容器中原本的位置，节点可能已被其他MOD的版本替换
+                previousSiblingInBase = slot
 
                 if (modChild is JsonPairNode && baseChild is JsonPairNode) {
                     val modValue = modChild.value
-                    val baseValue = baseChild.value
+                    val baseValue = session.document.current(baseChild.value)
 
                     if (modValue != null && baseValue != null) {
                         when (baseValue) {
                             // 对象节点对比
                             is JsonContainerNode if modValue is JsonContainerNode -> {
-                                reduceCompare((originalChild as? JsonPairNode)?.value, baseValue, modValue)
+                                reduceCompare(session, (originalChild as? JsonPairNode)?.value, baseValue, modValue)
                             }
                             // 数组节点对比
                             is JsonArrayNode if modValue is JsonArrayNode -> {
-                                reduceCompare((originalChild as? JsonPairNode)?.value, baseValue, modValue)
+                                reduceCompare(session, (originalChild as? JsonPairNode)?.value, baseValue, modValue)
                             }
                             // 叶子节点，直接比较文本
                             else -> {
@@ -154,11 +158,11 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
                                     val originalValue = (originalChild as? JsonPairNode)?.value
                                     if (originalValue == null || originalValue.sourceText != modValue.sourceText) {
                                         // 发生冲突，记录完整的PairNode（包含key和value）
-                                        conflicts.add(
+                                        session.conflicts.add(
                                             ConflictRecord(
-                                                context.fileName,
-                                                context.mod1Name,
-                                                context.mod2Name,
+                                                session.context.fileName,
+                                                session.context.mod1Name,
+                                                session.context.mod2Name,
                                                 baseChild.signature,
                                                 baseChild,  // 完整的PairNode
                                                 modChild    // 完整的PairNode
@@ -170,24 +174,26 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
                         }
                     }
                 } else {
-                    reduceCompare(originalChild, baseChild, modChild)
+                    reduceCompare(session, originalChild, baseChild, modChild)
                 }
             }
         }
 
         // 检测被MOD删除的节点（base有，但mod没有）
-        detectRemovedNodes(originalContainer, baseContainer, modContainer)
+        detectRemovedNodes(session, originalContainer, baseContainer, modContainer)
     }
 
     /**
      * 检测被MOD删除/注释的节点
      */
     private fun detectRemovedNodes(
+        session: JsonMergeSession,
         originalContainer: JsonContainerNode?,
         baseContainer: JsonContainerNode,
         modContainer: JsonContainerNode
     ) {
-        for ((signature, baseChild) in baseContainer.childrens) {
+        for ((signature, slot) in baseContainer.childrens) {
+            val baseChild = session.document.current(slot) ?: continue
             val modChild = modContainer.childrens[signature]
 
             // base有，但mod没有 -> 可能是删除
@@ -198,11 +204,11 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
                 if (originalChild != null) {
                     // 原版有这个节点，MOD也应该有但却没有
                     // 这说明MOD故意删除了这个节点，需要提示用户
-                    conflicts.add(
+                    session.conflicts.add(
                         ConflictRecord(
-                            context.fileName,
-                            context.mod1Name,
-                            context.mod2Name,
+                            session.context.fileName,
+                            session.context.mod1Name,
+                            session.context.mod2Name,
                             signature,
                             baseChild,
                             null, // modNode为null表示删除
@@ -220,21 +226,26 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
      * 比较数组节点
      */
     private fun compareArrays(
+        session: JsonMergeSession,
         originalArray: JsonArrayNode?,
         baseArray: JsonArrayNode,
         modArray: JsonArrayNode
     ) {
-        val baseElements = baseArray.getElements()
+        // 子树哈希相同，MOD不会带来任何修改，跳过整棵子树
+        if (session.document.isUnchanged(originalArray, baseArray, modArray)) {
+            return
+        }
+        val baseElements = baseArray.getElements().map { session.document.current(it) }
         val modElements = modArray.getElements()
 
         // 简单策略：如果数组长度或内容不同，视为冲突
         if (baseElements.size != modElements.size) {
             if (!isNodeSameAsOriginalBaseMod(originalArray, modArray)) {
-                conflicts.add(
+                session.conflicts.add(
                     ConflictRecord(
-                        context.fileName,
-                        context.mod1Name,
-                        context.mod2Name,
+                        session.context.fileName,
+                        session.context.mod1Name,
+                        session.context.mod2Name,
                         baseArray.signature,
                         baseArray,
                         modArray
@@ -245,7 +256,8 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
             // 逐个比较数组元素
             for (i in baseElements.indices) {
                 val originalElement = originalArray?.getElements()?.getOrNull(i)
-                reduceCompare(originalElement, baseElements[i], modElements[i])
+                val baseElement = baseElements[i] ?: continue
+                reduceCompare(session, originalElement, baseElement, modElements[i])
             }
         }
     }
@@ -254,6 +266,7 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
      * 比较叶子节点
      */
     private fun compareLeafNodes(
+        session: JsonMergeSession,
         originalNode: BaseTreeNode?,
         baseNode: BaseTreeNode,
         modNode: BaseTreeNode
@@ -264,11 +277,11 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
         if (baseText != modText) {
             // 不相同，检查是否跟基准mod的一样，不一样视为冲突
             if (!isNodeSameAsOriginalBaseMod(originalNode, modNode)) {
-                conflicts.add(
+                session.conflicts.add(
                     ConflictRecord(
-                        context.fileName,
-                        context.mod1Name,
-                        context.mod2Name,
+                        session.context.fileName,
+                        session.context.mod1Name,
+                        session.context.mod2Name,
                         baseNode.signature,
                         baseNode,
                         modNode
@@ -289,63 +302,48 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
     }
 
     /**
-     * 获取合并后的内容
+     * 将本轮对比的结果应用到合并文档，并更新合并后的语法树，供下一轮对比使用
      */
-    private fun getMergedContent(baseResult: ParsedResult<BaseTreeNode>): String {
-        val rewriter = TokenStreamRewriter(baseResult.tokenStream)
+    private fun applyChanges(session: JsonMergeSession) {
+        val document = session.document
 
         // 处理冲突节点
-        for (conflictRecord in conflicts) {
+        for (conflictRecord in session.conflicts) {
             if (conflictRecord.conflictType == ConflictType.REMOVAL) {
                 // 删除类型的冲突
                 if (conflictRecord.userChoice == UserChoice.MERGE_MOD) {
                     // 用户选择使用MOD的版本（即删除该节点）
-                    val baseNode = conflictRecord.baseNode
-                    rewriter.delete(baseNode.startTokenIndex, baseNode.stopTokenIndex)
+                    document.delete(conflictRecord.baseNode)
                 }
                 // 如果选择 BASE_MOD，则保留原内容，不做任何操作
             } else if (conflictRecord.userChoice == UserChoice.MERGE_MOD) {
                 // 普通修改冲突：用户选择了 Mod
-                val baseNode = conflictRecord.baseNode
                 val modNode = conflictRecord.modNode
                 if (modNode != null) {
                     // 替换为mod节点的内容
-                    rewriter.replace(
-                        baseNode.startTokenIndex,
-                        baseNode.stopTokenIndex,
-                        modNode.sourceText
-                    )
+                    document.replace(conflictRecord.baseNode, modNode)
                 }
             }
         }
 
         // 处理新增节点
-        for (record in newNodes) {
+        for (record in session.newNodes) {
             val parentContainer = record.parentContainer
             val newNode = record.newNode
             val previousSibling = record.previousSibling
 
             if (previousSibling != null) {
                 // 在前一个兄弟节点后插入
-                val insertText = buildInsertText(newNode, false)
-                rewriter.insertAfter(previousSibling.stopTokenIndex, insertText)
+                document.insertAfter(document.positionAfter(previousSibling), newNode, *buildInsertText(newNode, false))
             } else {
-                // 作为第一个子节点插入
-                val insertText = buildInsertText(newNode, true)
-                when (parentContainer) {
-                    is JsonContainerNode -> {
-                        // 在对象的左花括号后插入
-                        rewriter.insertAfter(parentContainer.startTokenIndex, insertText)
-                    }
-                    is JsonArrayNode -> {
-                        // 在数组的左方括号后插入
-                        rewriter.insertAfter(parentContainer.startTokenIndex, insertText)
-                    }
-                }
+                // 作为第一个子节点插入，在对象的左花括号后插入
+                val position = MergedDocument.InsertPosition(parentContainer.tokenStream, parentContainer.startTokenIndex + 1)
+                document.insertAfter(position, newNode, *buildInsertText(newNode, true))
             }
+            parentContainer.childrens[record.signature] = newNode
+            document.markModified(parentContainer)
         }
-
-        return rewriter.text
+        document.endStep()
     }
 
     /**
@@ -354,31 +352,36 @@ class TechlandJsonFileMerger(context: MergerContext) : AbstractFileMerger(contex
     private fun buildInsertText(
         newNode: BaseTreeNode,
         isFirstChild: Boolean
-    ): String {
-        val nodeText = newNode.sourceText
-
+    ): Array<Any> {
         return when {
             isFirstChild -> {
                 // 第一个子节点，添加换行和缩进
-                "\n    $nodeText"
+                arrayOf("\n    ", newNode)
             }
             else -> {
                 // 后续子节点，添加逗号、换行和缩进
-                ",\n    $nodeText"
+                arrayOf(",\n    ", newNode)
             }
         }
     }
 
     private fun parseFile(fileTree: AbstractFileTree): ParsedResult<BaseTreeNode> {
-        return parseContent(fileTree.getContent())
+        return parseStream(fileTree.openCharStream())
+    }
+
+    override fun warmUp() {
+        ParserRuntime.warmUp("sample.gui") { parseContent(it) }
     }
 
     private fun parseContent(content: String): ParsedResult<BaseTreeNode> {
-        val charStream = CharStreams.fromString(content)
-        val lexer = JSONLexer(charStream)
+        return parseStream(CharStreams.fromString(content))
+    }
+
+    private fun parseStream(charStream: CharStream): ParsedResult<BaseTreeNode> {
+        val lexer = ParserRuntime.lexer(JSONLexer(charStream))
         val tokenStream = CommonTokenStream(lexer)
         val parser = JSONParser(tokenStream)
-        val jsonContext = parser.json()
+        val jsonContext = ParserRuntime.parse(parser) { it.json() }
 
         // 使用Visitor转换为节点树
         val visitor = TechlandJsonFileVisitor(tokenStream)
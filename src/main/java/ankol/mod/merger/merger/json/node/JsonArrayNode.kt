@@ -1,6 +1,7 @@
 package ankol.mod.merger.merger.json.node
 
 import ankol.mod.merger.core.BaseTreeNode
+import ankol.mod.merger.core.ContentHash
 import org.antlr.v4.runtime.TokenStream
 
 /**
@@ -21,6 +22,7 @@ class JsonArrayNode(
      */
     fun addElement(node: BaseTreeNode) {
         children.add(node)
+        node.parent = this
     }
 
     /**
@@ -29,6 +31,10 @@ class JsonArrayNode(
     @Suppress("unused")
     fun getElements(): List<BaseTreeNode> = children
 
+    override fun computeContentHash(): Long {
+        return ContentHash.ordered(javaClass, children) { it.contentHash }
+    }
+
     override fun printTree(indent: String) {
         super.printTree(indent)
         for (child in children) {
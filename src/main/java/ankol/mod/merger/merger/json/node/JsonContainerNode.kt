@@ -1,6 +1,7 @@
 package ankol.mod.merger.merger.json.node
 
 import ankol.mod.merger.core.BaseTreeNode
+import ankol.mod.merger.core.ContentHash
 import ankol.mod.merger.tools.logger
 import org.antlr.v4.runtime.TokenStream
 
@@ -15,7 +16,9 @@ class JsonContainerNode(
     tokenStream: TokenStream,
     var childrens: MutableMap<String, BaseTreeNode> = mutableMapOf()
 ) : BaseTreeNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream) {
-    private val log = logger()
+    companion object {
+        private val log = logger<JsonContainerNode>()
+    }
 
     /**
      * 添加子节点
@@ -25,6 +28,11 @@ class JsonContainerNode(
             log.debug("Repeatable siginature detected: [${node.signature}] Line: ${node.lineNumber} SourceText: ${node.sourceText}.")
         }
         childrens[node.signature] = node
+        node.parent = this
+    }
+
+    override fun computeContentHash(): Long {
+        return ContentHash.unordered(javaClass, childrens) { it.contentHash }
     }
 
     override fun printTree(indent: String) {
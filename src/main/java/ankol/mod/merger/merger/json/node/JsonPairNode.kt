@@ -1,6 +1,7 @@
 package ankol.mod.merger.merger.json.node
 
 import ankol.mod.merger.core.BaseTreeNode
+import ankol.mod.merger.core.ContentHash
 import org.antlr.v4.runtime.TokenStream
 
 /**
@@ -15,5 +16,16 @@ class JsonPairNode(
 ) : BaseTreeNode(signature, startTokenIndex, stopTokenIndex, lineNumber, tokenStream) {
 
     var value: BaseTreeNode? = null
+        set(value) {
+            field = value
+            value?.parent = this
+        }
+
+    /**
+     * 键已经包含在签名中，只需要值的哈希
+     */
+    override fun computeContentHash(): Long {
+        return ContentHash.ordered(javaClass, listOfNotNull(value)) { it.contentHash }
+    }
 }
 
@@ -16,23 +16,33 @@ import lombok.extern.slf4j.Slf4j
 import org.antlr.v4.runtime.CharStream
 import org.antlr.v4.runtime.CharStreams
 import org.antlr.v4.runtime.CommonTokenStream
-import org.antlr.v4.runtime.TokenStreamRewriter
 
+/**
+ * SCR脚本文件合并器
+ *
+ * 合并器本身无状态，单次合并的状态保存在 [ScrMergeSession] 中
+ */
 @Slf4j
-class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context) {
+class TechlandScrFileMerger : AbstractFileMerger() {
     private val log = logger()
 
-    /**
-     * 标记冲突项的容器
-     */
-    private val conflicts = ArrayList<ConflictRecord>()
-
     /**
      * 插入操作记录
+     *
+     * @param container 插入到的容器
+     * @param signature 新增节点在容器中的签名
+     * @param newNode 新增的节点
+     * @param tokenIndex 插入位置（容器所属Token流中的索引）
+     * @param parts 插入的内容，节点在生成结果时替换为节点的文本
      */
-    private data class InsertOperation(val tokenIndex: Int, val content: String, val nodeType: NodeType = NodeType.OTHER)
-
-    private val insertOperations = ArrayList<InsertOperation>()
+    private class InsertOperation(
+        val container: ScrContainerScriptNode,
+        val signature: String,
+        val newNode: BaseTreeNode,
+        val tokenIndex: Int,
+        val parts: Array<Any>,
+        val nodeType: NodeType = NodeType.OTHER
+    )
 
     /**
      * 节点类型，用于确定插入位置的优先级
@@ -44,60 +54,61 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
     }
 
     /**
-     * 基准MOD（data0.pak）对应文件的语法树，用于三方对比
+     * SCR合并会话，额外记录插入操作
      */
-    private var originalBaseModRoot: ScrContainerScriptNode? = null
+    private class ScrMergeSession(
+        context: MergerContext,
+        originalBaseModRoot: ScrContainerScriptNode?,
+        val document: MergedDocument
+    ) : MergeSession<ScrContainerScriptNode>(context, originalBaseModRoot) {
+        val insertOperations = ArrayList<InsertOperation>()
+    }
 
-    override fun merge(file1: AbstractFileTree, file2: AbstractFileTree): MergeResult {
+    override fun mergeAll(base: AbstractFileTree, mods: List<AbstractFileTree>, context: MergerContext): MergeResult {
         try {
-            val parsedResult = context.baseModManager.parseForm(file1.fileEntryName) { parseContent(it) }
-            // 解析基准MOD文件（如果存在）
-            if (parsedResult != null) {
-                originalBaseModRoot = parsedResult.astNode
+            // 签名驻留表只在解析本文件的各个版本时使用，解析完成后释放
+            val (parsedResult, parsedFiles) = SignatureInterner.scoped {
+                // 解析基准MOD文件（如果存在）
+                val original = context.baseModManager.parseForm(base.fileEntryName) { parseContent(it) }
+                // 依次解析base和所有mod文件，每个版本只解析一次，保留TokenStream（不同文件的合并已经在工作线程中并行执行）
+                original to (listOf(base) + mods).map { parseFile(it) }
             }
-            // 解析base和mod文件，保留TokenStream
-            val baseResult = parseFile(file1)
-            val modResult = parseFile(file2)
+            val baseResult = parsedFiles[0]
             val baseRoot: ScrContainerScriptNode = baseResult.astNode!!
-            val modRoot: ScrContainerScriptNode = modResult.astNode!!
-
-            //开始递归对比
-            reduceCompare(originalBaseModRoot, baseRoot, modRoot)
-
-            //第一个mod与原版文件的对比
-            if (context.isFirstModMergeWithBaseMod && !conflicts.isEmpty()) {
-                for (record in conflicts) {
-                    if (record.conflictType == ConflictType.REMOVAL) {
-                        // 删除类型冲突：MOD缺少原版节点，应该保留原版（补回缺失的代码）
-                        // 因为这很可能是MOD过期导致的缺失，而非故意删除
-                        record.userChoice = UserChoice.BASE_MOD
-                    } else {
-                        // 普通修改冲突：使用MOD修改的版本
-                        record.userChoice = UserChoice.MERGE_MOD
-                    }
+            val document = MergedDocument()
+            val baseIsOriginal = context.isFirstModMergeWithBaseMod
+            var hasConflicts = false
+
+            for (i in mods.indices) {
+                prepareStep(context, base, mods, i, baseIsOriginal)
+                val session = ScrMergeSession(context, parsedResult?.astNode, document)
+                //开始递归对比，base为之前所有mod合并后的语法树
+                reduceCompare(session, session.originalBaseModRoot, baseRoot, parsedFiles[i + 1].astNode!!)
+                //处理冲突（第一个mod与原版文件的对比自动处理，否则提示用户）
+                if (!session.resolveConflicts()) {
+                    // 存在需要用户选择的冲突，之后的对比依赖用户的选择，等待统一处理后重新合并
+                    return MergeResult.DEFERRED
                 }
-            } else if (!conflicts.isEmpty()) {
-                // 正常情况下，提示用户解决冲突
-                ConflictResolver.resolveConflict(conflicts)
+                applyChanges(session)
+                hasConflicts = hasConflicts || session.conflicts.isNotEmpty()
             }
-
-            return MergeResult(getMergedContent(baseResult), !conflicts.isEmpty())
+            return MergeResult(document.render(baseResult.tokenStream), hasConflicts)
         } catch (e: Exception) {
-            log.error("Error during SCR file merge: ${file1.fileName} Reason: ${e.message}", e)
-            throw BusinessException("文件${file1.fileName}合并失败")
-        } finally {
-            //清理状态，准备下一个文件合并
-            conflicts.clear()
-            insertOperations.clear()
-            originalBaseModRoot = null
+            log.error("Error during SCR file merge: ${base.fileName} Reason: ${e.message}", e)
+            throw BusinessException("文件${base.fileName}合并失败")
         }
     }
 
     private fun reduceCompare(
+        session: ScrMergeSession,
         originalContainer: ScrContainerScriptNode?,
         baseContainer: ScrContainerScriptNode,
         modContainer: ScrContainerScriptNode
     ) {
+        // 子树哈希相同，MOD不会带来任何修改，跳过整棵子树
+        if (session.document.isUnchanged(originalContainer, baseContainer, modContainer)) {
+            return
+        }
         // 遍历 Mod 的所有子节点
         for ((signature, modNode) in modContainer.childrens) {
             try {
@@ -105,42 +116,42 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
                 if (originalContainer != null) {
                     originalNode = originalContainer.childrens[signature]
                 }
-                val baseNode = baseContainer.childrens[signature]
+                val baseNode = session.document.current(baseContainer.childrens[signature])
 
                 if (baseNode == null) {
                     // 新增 Base 没有这个节点 -> 插入
-                    handleInsertion(baseContainer, modNode)
+                    handleInsertion(session, baseContainer, signature, modNode)
                 } else {
                     // [存在] 检查是否冲突
                     if (baseNode is ScrContainerScriptNode && modNode is ScrContainerScriptNode) {
                         // 容器节点，递归进入内部对比
-                        reduceCompare(originalNode as ScrContainerScriptNode?, baseNode, modNode)
+                        reduceCompare(session, originalNode as ScrContainerScriptNode?, baseNode, modNode)
                     } else if (baseNode is ScrFunCallScriptNode && modNode is ScrFunCallScriptNode) {
-                        if (baseNode.arguments != modNode.arguments) {
+                        if (!baseNode.sameArguments(modNode)) {
                             //两者内容不同，检查mod节点内容与原版是否相同
-                            if (!isNodeSameAsOriginalNode(originalNode, modNode)) {
+                            if (!isNodeSameAsOriginalNode(session, originalNode, modNode)) {
                                 //检查base节点是否与原版相同
-                                if (isNodeSameAsOriginalNode(originalNode, baseNode)
+                                if (isNodeSameAsOriginalNode(session, originalNode, baseNode)
                                     && GlobalMergingStrategy.autoMergingCodeLine
                                 ) {
                                     //base节点与原版一致，说明base节点未变动，使用mod的内容（开启了智能合并的情况下）
                                     val record = ConflictRecord(
-                                        context.fileName,
-                                        context.mod1Name,
-                                        context.mod2Name,
+                                        session.context.fileName,
+                                        session.context.mod1Name,
+                                        session.context.mod2Name,
                                         signature,
                                         baseNode,
                                         modNode
                                     )
                                     record.userChoice = UserChoice.MERGE_MOD
-                                    conflicts.add(record)
+                                    session.conflicts.add(record)
                                 } else {
                                     //真正的冲突，记录
-                                    conflicts.add(
+                                    session.conflicts.add(
                                         ConflictRecord(
-                                            context.fileName,
-                                            context.mod1Name,
-                                            context.mod2Name,
+                                            session.context.fileName,
+                                            session.context.mod1Name,
+                                            session.context.mod2Name,
                                             signature,
                                             baseNode,
                                             modNode
@@ -155,14 +166,14 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
                         //内容不一致
                         if (!equalsTrimmed(baseText, modText)) {
                             // 检查modNode是否与原始基准MOD相同
-                            if (!isNodeSameAsOriginalNode(originalNode, modNode)) {
+                            if (!isNodeSameAsOriginalNode(session, originalNode, modNode)) {
                                 //对比基准节点与base节点，相同直接用mod的
-                                if (isNodeSameAsOriginalNode(originalNode, baseNode)) {
-                                    conflicts.add(
+                                if (isNodeSameAsOriginalNode(session, originalNode, baseNode)) {
+                                    session.conflicts.add(
                                         ConflictRecord(
-                                            context.fileName,
-                                            context.mod1Name,
-                                            context.mod2Name,
+                                            session.context.fileName,
+                                            session.context.mod1Name,
+                                            session.context.mod2Name,
                                             signature,
                                             baseNode,
                                             modNode,
@@ -170,11 +181,11 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
                                         )
                                     )
                                 } else {
-                                    conflicts.add(
+                                    session.conflicts.add(
                                         ConflictRecord(
-                                            context.fileName,
-                                            context.mod1Name,
-                                            context.mod2Name,
+                                            session.context.fileName,
+                                            session.context.mod1Name,
+                                            session.context.mod2Name,
                                             signature,
                                             baseNode,
                                             modNode
@@ -191,7 +202,7 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
         }
 
         // 检测被MOD删除的节点（base有，但mod没有）
-//        detectRemovedNodes(originalContainer, baseContainer, modContainer)
+//        detectRemovedNodes(session, originalContainer, baseContainer, modContainer)
     }
 
     /**
@@ -203,11 +214,13 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
      * - 需要提示用户选择是保留(使用base)还是删除(使用mod的删除操作)
      */
     private fun detectRemovedNodes(
+        session: ScrMergeSession,
         originalContainer: ScrContainerScriptNode?,
         baseContainer: ScrContainerScriptNode,
         modContainer: ScrContainerScriptNode
     ) {
-        for ((signature, baseNode) in baseContainer.childrens) {
+        for ((signature, slot) in baseContainer.childrens) {
+            val baseNode = session.document.current(slot) ?: continue
             val modNode = modContainer.childrens[signature]
 
             // base有，但mod没有 -> 可能是删除
@@ -218,11 +231,11 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
                 if (originalNode != null) {
                     // 原版有这个节点，MOD也应该有但却没有
                     // 这说明MOD故意删除了这个节点，需要提示用户
-                    conflicts.add(
+                    session.conflicts.add(
                         ConflictRecord(
-                            context.fileName,
-                            context.mod1Name,
-                            context.mod2Name,
+                            session.context.fileName,
+                            session.context.mod1Name,
+                            session.context.mod2Name,
                             signature,
                             baseNode,
                             null, // modNode为null表示删除
@@ -236,28 +249,25 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
         }
     }
 
-    private fun getMergedContent(baseResult: ParsedResult<ScrContainerScriptNode>): String {
-        val rewriter = TokenStreamRewriter(baseResult.tokenStream)
+    /**
+     * 将本轮对比的结果应用到合并文档，并更新合并后的语法树，供下一轮对比使用
+     */
+    private fun applyChanges(session: ScrMergeSession) {
+        val document = session.document
         // 处理冲突节点的替换
-        for (record in conflicts) {
+        for (record in session.conflicts) {
             if (record.conflictType == ConflictType.REMOVAL) {
                 // 删除类型的冲突
                 if (record.userChoice == UserChoice.MERGE_MOD) {
                     // 用户选择使用MOD的版本（即删除该节点）
-                    val baseNode = record.baseNode
-                    rewriter.delete(baseNode.startTokenIndex, baseNode.stopTokenIndex)
+                    document.delete(record.baseNode)
                 }
                 // 如果选择 BASE_MOD，则保留原内容，不做任何操作
             } else if (record.userChoice == UserChoice.MERGE_MOD) {
                 // 普通修改冲突：用户选择了 Mod
-                val baseNode = record.baseNode
                 val modNode = record.modNode
                 if (modNode != null) {
-                    rewriter.replace(
-                        baseNode.startTokenIndex,
-                        baseNode.stopTokenIndex,
-                        modNode.sourceText
-                    )
+                    document.replace(record.baseNode, modNode)
                 }
             }
         }
@@ -265,7 +275,7 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
         // 对插入操作按照优先级和位置排序
         // 优先级：IMPORT > SUB > OTHER
         // 同一优先级内按照 tokenIndex 升序排序（从前往后插入）
-        val sortedOperations = insertOperations.sortedWith(compareBy<InsertOperation> { op ->
+        val sortedOperations = session.insertOperations.sortedWith(compareBy<InsertOperation> { op ->
             when (op.nodeType) {
                 NodeType.IMPORT -> 0
                 NodeType.SUB -> 1
@@ -274,16 +284,21 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
         }.thenBy { it.tokenIndex })
 
         for (op in sortedOperations) {
-            rewriter.insertBefore(op.tokenIndex, op.content)
+            val position = MergedDocument.InsertPosition(op.container.tokenStream, op.tokenIndex)
+            document.insertBefore(position, op.newNode, *op.parts)
+            op.container.childrens[op.signature] = op.newNode
+            document.markModified(op.container)
         }
-
-        // 获取重写后的文本
-        return rewriter.text
+        document.endStep()
     }
 
-    private fun isNodeSameAsOriginalNode(originalNode: BaseTreeNode?, modNode: BaseTreeNode): Boolean {
+    private fun isNodeSameAsOriginalNode(
+        session: ScrMergeSession,
+        originalNode: BaseTreeNode?,
+        modNode: BaseTreeNode
+    ): Boolean {
         // 如果没有原始基准MOD，则认为不相同
-        if (originalBaseModRoot == null) {
+        if (session.originalBaseModRoot == null) {
             return false
         }
 
@@ -295,13 +310,18 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
         // 对比节点内容
         return if (modNode is ScrFunCallScriptNode && originalNode is ScrFunCallScriptNode) {
             // 函数调用节点，对比参数
-            modNode.arguments == originalNode.arguments
+            modNode.sameArguments(originalNode)
         } else {
             equalsTrimmed(modNode.sourceText, originalNode.sourceText)
         }
     }
 
-    private fun handleInsertion(baseContainer: ScrContainerScriptNode, modNode: BaseTreeNode) {
+    private fun handleInsertion(
+        session: ScrMergeSession,
+        baseContainer: ScrContainerScriptNode,
+        signature: String,
+        modNode: BaseTreeNode
+    ) {
         // 根据节点签名确定节点类型
         val nodeType = when {
             modNode.signature.startsWith("import:") -> NodeType.IMPORT
@@ -309,30 +329,30 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
             else -> NodeType.OTHER
         }
 
-        var newContent: String
+        val newContent: Array<Any>
 
         // 选择合适的插入位置
         val insertPos = when (nodeType) {
             NodeType.IMPORT -> {
                 // import语句需要插入在文件最顶上
-                newContent = "\n${modNode.sourceText}"
+                newContent = arrayOf("\n", modNode)
                 findInsertPositionForImport(baseContainer)
             }
 
             NodeType.SUB -> {
                 // sub 插入到import语句后，但在其他节点前
-                newContent = "${modNode.sourceText}\n"
+                newContent = arrayOf(modNode, "\n")
                 findInsertPositionForSub(baseContainer)
             }
 
             NodeType.OTHER -> {
                 // 其他节点直接插在容器的 '}' 之前
-                newContent = "\n   ${modNode.sourceText}"
+                newContent = arrayOf("\n   ", modNode)
                 baseContainer.stopTokenIndex
             }
         }
 
-        insertOperations.add(InsertOperation(insertPos, newContent, nodeType))
+        session.insertOperations.add(InsertOperation(baseContainer, signature, modNode, insertPos, newContent, nodeType))
     }
 
     /**
@@ -341,7 +361,7 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
     private fun findInsertPositionForImport(container: ScrContainerScriptNode): Int {
         var lastImportStopIndex: Int? = null
 
-        for ((_, node) in container.childrens) {
+        for (node in ownChildren(container)) {
             if (node.signature.startsWith("import:")) {
                 lastImportStopIndex = node.stopTokenIndex
             } else {
@@ -360,7 +380,7 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
     private fun findInsertPositionForSub(container: ScrContainerScriptNode): Int {
         var lastSubOrImportStopIndex: Int? = null
 
-        for ((_, node) in container.childrens) {
+        for (node in ownChildren(container)) {
             val isSub = node.signature.startsWith("sub:")
             val isImport = node.signature.startsWith("import:")
 
@@ -376,18 +396,32 @@ class TechlandScrFileMerger(context: MergerContext) : AbstractFileMerger(context
         return lastSubOrImportStopIndex ?: container.stopTokenIndex
     }
 
+    /**
+     * 容器中与容器属于同一Token流的子节点，之前的MOD新增的节点来自其他Token流，不能用于计算插入位置
+     */
+    private fun ownChildren(container: ScrContainerScriptNode): List<BaseTreeNode> {
+        return container.childrens.values.filter { it.tokenStream === container.tokenStream }
+    }
+
     private fun parseFile(fileTree: AbstractFileTree): ParsedResult<ScrContainerScriptNode> {
-        return parseContent(fileTree.getContent())
+        return parseStream(fileTree.openCharStream())
+    }
+
+    override fun warmUp() {
+        ParserRuntime.warmUp("sample.scr") { parseContent(it) }
     }
 
     private fun parseContent(content: String): ParsedResult<ScrContainerScriptNode> {
-        val input: CharStream = CharStreams.fromString(content)
-        val lexer = TechlandScriptLexer(input)
+        return parseStream(CharStreams.fromString(content))
+    }
+
+    private fun parseStream(input: CharStream): ParsedResult<ScrContainerScriptNode> {
+        val lexer = ParserRuntime.lexer(TechlandScriptLexer(input))
         val tokens = CommonTokenStream(lexer)
         val parser = TechlandScriptParser(tokens)
         val visitor = TechlandScrFileVisitor(tokens)
         // 注意：visitFile 返回的一定是我们定义的 ROOT Container
-        val ast = visitor.visitFile(parser.file()) as ScrContainerScriptNode
+        val ast = visitor.visitFile(ParserRuntime.parse(parser) { it.file() }) as ScrContainerScriptNode
         return ParsedResult(ast, tokens)
     }
 
@@ -9,12 +9,15 @@ import ankol.mod.merger.merger.scr.node.ScrLeafScriptNode
 import org.antlr.v4.runtime.ParserRuleContext
 import org.antlr.v4.runtime.TokenStream
 import org.antlr.v4.runtime.misc.Interval
+import java.util.*
 
 class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScriptBaseVisitor<BaseTreeNode>() {
     //检测重复函数的东西
     private val repeatableFunctions: MutableMap<String, MutableSet<String>> = HashMap()
     private var currentFunBlockSignature = "ROOT" //标记当前处理到哪个函数块了，重复函数签名生成仅限自己对应的函数块内
     private var containerNode: ScrContainerScriptNode? = null
+    //容器 -> 子节点签名计数，生成重复签名的索引时不需要逐个扫描子节点
+    private val signatureIndexes = IdentityHashMap<ScrContainerScriptNode, SignatureIndex>()
 
     companion object {
         private const val FUN_CALL: String = "funCall"
@@ -48,7 +51,7 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
         for (defCtx in ctx.definition()) {
             val childNode = visit(defCtx)
             if (childNode != null) {
-                rootNode.addChild(childNode)
+                addChild(rootNode, childNode)
             }
         }
         return rootNode
@@ -145,7 +148,6 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
         //生成签名
         val funcName = ctx.Id().text
         val valueList = getValueList(ctx.valueList())
-        val argsList = valueList.map { it.text }
         var signature = "$FUN_CALL:$funcName"
         //检测重复签名的处理逻辑
         val signatures = repeatableFunctions.getOrDefault(currentFunBlockSignature, HashSet())
@@ -153,20 +155,17 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
 
         if (signatures.contains(signature)) {
             // 已标记为可重复函数，根据参数数量采用不同策略
-            signature = generateFunctionCallSignature(signature, argsList)
+            signature = generateFunctionCallSignature(signature, valueList.map { it.text })
         } else if (children.containsKey(signature)) {
             // 发现重复的函数调用，需要开始特殊处理
             val lastNode = children[signature] as ScrFunCallScriptNode
             signatures.add("$FUN_CALL:$funcName") //标记这个函数为可重复函数
 
             // 重新生成已存在节点的签名
-            val lastNewSignature = generateFunctionCallSignature(signature, lastNode.arguments)
-            lastNode.signature = lastNewSignature
-            children.remove(signature)
-            children[lastNewSignature] = lastNode
+            renameChild(containerNode!!, signature, generateFunctionCallSignature(signature, lastNode.arguments))
 
             // 当前处理的签名也要重新生成
-            signature = generateFunctionCallSignature(signature, argsList)
+            signature = generateFunctionCallSignature(signature, valueList.map { it.text })
         }
         repeatableFunctions[currentFunBlockSignature] = signatures
         return ScrFunCallScriptNode(
@@ -175,7 +174,7 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
             getStopTokenIndex(ctx),
             ctx.start.line,
             tokenStream,
-            argsList
+            getArgumentSpans(valueList)
         )
     }
 
@@ -193,7 +192,7 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
             getStopTokenIndex(ctx),
             ctx.start.line,
             tokenStream,
-            getValueList(ctx.valueList()).map { it.text }
+            getArgumentSpans(getValueList(ctx.valueList()))
         )
     }
 
@@ -292,25 +291,14 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
         // 检查是否已标记为可重复，如果是则需要计算索引
         if (signatures.contains(IF)) {
             // 已标记为可重复，计算当前是第几个 if
-            val children = containerNode!!.childrens
-            var ifIndex = 0
-            for (key in children.keys) {
-                if (key.startsWith("$IF:")) {
-                    ifIndex++
-                }
-            }
+            val ifIndex = indexOf(containerNode!!).countFamily(IF)
             ifSignature = "$IF:$ifIndex"
         } else {
             val children: MutableMap<String, BaseTreeNode> = containerNode!!.childrens
             // 发现重复的if语句，重新生成signature（使用索引）
             if (children.containsKey(IF)) {
-                val existingIfNode = children[IF]!!
-                val existingIfSignature = "$IF:0" // 第一个 if 使用索引 0
-
-                // 更新已存在的节点签名
-                existingIfNode.signature = existingIfSignature
-                children.remove(IF)
-                children[existingIfSignature] = existingIfNode
+                // 更新已存在的节点签名，第一个 if 使用索引 0
+                renameChild(containerNode!!, IF, "$IF:0")
 
                 signatures.add(IF) // 标记if为可重复语句
                 ifSignature = "$IF:1" // 当前这个是第二个，使用索引 1
@@ -337,24 +325,13 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
             // 对于 else if，也使用延迟唯一化（基于索引）
             if (signatures.contains(ELSE_IF)) {
                 // 已标记为可重复，计算当前是第几个 else if
-                val children = ifNode.childrens
-                var elseIfIndex = 0
-                for (key in children.keys) {
-                    if (key.startsWith("$ELSE_IF:")) {
-                        elseIfIndex++
-                    }
-                }
+                val elseIfIndex = indexOf(ifNode).countFamily(ELSE_IF)
                 elseIfSignature = "$ELSE_IF:$elseIfIndex"
             } else if (index > 0) {
                 // 第二个及以后的 else if，触发延迟唯一化
                 val children = ifNode.childrens
                 if (children.containsKey(ELSE_IF)) {
-                    val existingElseIfNode = children[ELSE_IF]!!
-                    val existingElseIfSignature = "$ELSE_IF:0"
-
-                    existingElseIfNode.signature = existingElseIfSignature
-                    children.remove(ELSE_IF)
-                    children[existingElseIfSignature] = existingElseIfNode
+                    renameChild(ifNode, ELSE_IF, "$ELSE_IF:0")
 
                     signatures.add(ELSE_IF)
                     elseIfSignature = "$ELSE_IF:$index"
@@ -374,7 +351,7 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
             visitFunctionBlockContent(elseIfNode, elseIfCtx.functionBlock())
 
             // 将 else if 节点添加为 if 节点的子节点
-            ifNode.addChild(elseIfNode)
+            addChild(ifNode, elseIfNode)
         }
         repeatableFunctions[currentFunBlockSignature] = signatures
 
@@ -394,7 +371,7 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
             visitFunctionBlockContent(elseNode, elseCtx.functionBlock())
 
             // 将 else 节点添加为 if 节点的子节点
-            ifNode.addChild(elseNode)
+            addChild(ifNode, elseNode)
         }
         // 恢复容器节点
         this.containerNode = previousContainer
@@ -412,25 +389,13 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
         val repeatebleSignatures = repeatableFunctions.getOrDefault(currentFunBlockSignature, HashSet())
         val childrens = containerNode!!.childrens
         if (repeatebleSignatures.contains(_signature)) {
-            var index = 0
-            for (key in childrens.keys) {
-                //先提取出sub:xxx:1中的索引1，然后+1生成当前自己的索引
-                //1 确保 key 属于这个基础签名族（如都是 sub:imports: 开头）
-                //2 移除前缀，提取冒号后面的部分（如 "0"、"1"、"123"）
-                //3 验证提取的部分全是数字，排除掉 sub:imports:abc 这样的非标准索引化签名
-                if (key.startsWith("$_signature:") && key.removePrefix("$_signature:").all { it.isDigit() }) {
-                    index++
-                }
-            }
+            //统计 sub:xxx:0、sub:xxx:1 这类索引化签名的数量，生成当前自己的索引
+            val index = indexOf(containerNode!!).countIndexed(_signature)
             _signature = "$_signature:$index"
         } else if (childrens.containsKey(_signature)) {
-            val lastNode = childrens[_signature]!!
             repeatebleSignatures.add(_signature) //标记这个sub为可重复函数
             // 重新生成已存在节点的签名
-            val lastNewSignature = "$_signature:0"
-            lastNode.signature = lastNewSignature
-            childrens.remove(_signature)
-            childrens[lastNewSignature] = lastNode
+            renameChild(containerNode!!, _signature, "$_signature:0")
             // 当前处理的签名也要重新生成
             _signature = "$_signature:1"
         }
@@ -447,13 +412,7 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
     private fun generateFunctionCallSignature(baseSignature: String, argsList: List<String>): String {
         if (argsList.size <= 1) {
             // 参数数量 <= 1，直接使用索引
-            val children = containerNode!!.childrens
-            var index = 0
-            for (key in children.keys) {
-                if (key.startsWith("$baseSignature:") && key.removePrefix("$baseSignature:").all { it.isDigit() }) {
-                    index++
-                }
-            }
+            val index = indexOf(containerNode!!).countIndexed(baseSignature)
             return "$baseSignature:$index"
         } else {
             // 参数数量 > 1，先用第一个参数加入签名
@@ -462,18 +421,42 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
 
             if (children.containsKey(signatureWithParam)) {
                 // 仍然有重复，需要追加索引
-                var index = 0
-                for (key in children.keys) {
-                    if (key.startsWith("$signatureWithParam:") && key.removePrefix("$signatureWithParam:").all { it.isDigit() }) {
-                        index++
-                    }
-                }
+                val index = indexOf(containerNode!!).countIndexed(signatureWithParam)
                 return "$signatureWithParam:$index"
             }
             return signatureWithParam
         }
     }
 
+    private fun indexOf(container: ScrContainerScriptNode): SignatureIndex {
+        return signatureIndexes.getOrPut(container) { SignatureIndex() }
+    }
+
+    /**
+     * 添加子节点，同时更新签名计数
+     */
+    private fun addChild(parent: ScrContainerScriptNode, child: BaseTreeNode) {
+        if (!parent.childrens.containsKey(child.signature)) {
+            indexOf(parent).add(child.signature)
+        }
+        parent.addChild(child)
+    }
+
+    /**
+     * 修改已存在子节点的签名，同时更新签名计数
+     */
+    private fun renameChild(container: ScrContainerScriptNode, oldSignature: String, newSignature: String) {
+        val childrens = container.childrens
+        val index = indexOf(container)
+        val node = childrens.remove(oldSignature)!!
+        index.remove(oldSignature)
+        node.signature = newSignature
+        if (!childrens.containsKey(node.signature)) {
+            index.add(node.signature)
+        }
+        childrens[node.signature] = node
+    }
+
     /**
      * 处理函数块内容
      */
@@ -484,7 +467,7 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
         for (statement in ctx.statements()) {
             val child = visit(statement)
             if (child != null) {
-                parent.addChild(child)
+                addChild(parent, child)
             }
         }
     }
@@ -514,6 +497,18 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
         return ctx.start.inputStream.getText(Interval(a, b)).replace("\\s".toRegex(), "")
     }
 
+    /**
+     * 获取参数所在的Token范围，依次为每个参数的起始、结束Token索引
+     */
+    private fun getArgumentSpans(valueList: List<ExpressionContext>): IntArray {
+        val spans = IntArray(valueList.size * 2)
+        for ((i, expression) in valueList.withIndex()) {
+            spans[i * 2] = getStartTokenIndex(expression)
+            spans[i * 2 + 1] = getStopTokenIndex(expression)
+        }
+        return spans
+    }
+
     private fun getValueList(context: ValueListContext?): MutableList<ExpressionContext> {
         val valueList = ArrayList<ExpressionContext>()
         if (context != null) {
@@ -521,4 +516,41 @@ class TechlandScrFileVisitor(private val tokenStream: TokenStream) : TechlandScr
         }
         return valueList
     }
+
+    /**
+     * 容器中子节点签名的计数，结果与逐个扫描子节点的key完全一致：
+     * - [countIndexed]：形如 `前缀:数字` 的签名数量，数字部分不含冒号，所以前缀就是最后一个冒号之前的部分
+     * - [countFamily]：以 `类型:` 开头的签名数量，类型就是第一个冒号之前的部分
+     */
+    private class SignatureIndex {
+        private val indexed = HashMap<String, Int>()
+        private val families = HashMap<String, Int>()
+
+        fun add(signature: String) {
+            update(signature, 1)
+        }
+
+        fun remove(signature: String) {
+            update(signature, -1)
+        }
+
+        fun countIndexed(prefix: String): Int {
+            return indexed[prefix] ?: 0
+        }
+
+        fun countFamily(family: String): Int {
+            return families[family] ?: 0
+        }
+
+        private fun update(signature: String, delta: Int) {
+            val lastColon = signature.lastIndexOf(':')
+            if (lastColon < 0) {
+                return
+            }
+            if ((lastColon + 1 until signature.length).all { signature[it].isDigit() }) {
+                indexed.merge(signature.substring(0, lastColon), delta, Int::plus)
+            }
+            families.merge(signature.substring(0, signature.indexOf(':')), delta, Int::plus)
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package ankol.mod.merger.merger.scr.node
 
 import ankol.mod.merger.core.BaseTreeNode
+import ankol.mod.merger.core.ContentHash
 import ankol.mod.merger.tools.logger
 import org.antlr.v4.runtime.TokenStream
 
@@ -17,7 +18,9 @@ class ScrContainerScriptNode(
     line: Int,
     tokenStream: TokenStream
 ) : BaseTreeNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream) {
-    private val log = logger()
+    companion object {
+        private val log = logger<ScrContainerScriptNode>()
+    }
 
     /**
      * 子节点映射，key 是节点签名，value 是节点对象
@@ -32,6 +35,11 @@ class ScrContainerScriptNode(
             log.debug("Repeatable siginature detected: [${node.signature}] Line: ${node.lineNumber} SourceText: ${node.sourceText}.")
         }
         childrens[node.signature] = node
+        node.parent = this
+    }
+
+    override fun computeContentHash(): Long {
+        return ContentHash.unordered(javaClass, childrens) { it.contentHash }
     }
 
     override fun printTree(indent: String) {
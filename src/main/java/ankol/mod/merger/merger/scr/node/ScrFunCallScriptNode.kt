@@ -1,10 +1,15 @@
 package ankol.mod.merger.merger.scr.node
 
 import ankol.mod.merger.core.BaseTreeNode
+import ankol.mod.merger.core.ContentHash
+import org.antlr.v4.runtime.Token
 import org.antlr.v4.runtime.TokenStream
 
 /**
  * 函数调用节点
+ *
+ * 参数只记录Token范围，需要时再从Token流生成文本
+ * @param argumentSpans 参数所在的Token范围，依次为每个参数的起始、结束Token索引
  */
 class ScrFunCallScriptNode(
     signature: String,
@@ -12,5 +17,54 @@ class ScrFunCallScriptNode(
     stopTokenIndex: Int,
     line: Int,
     tokenStream: TokenStream,
+    val argumentSpans: IntArray
+) : BaseTreeNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream) {
+    /**
+     * 参数数量
+     */
+    val argumentCount: Int
+        get() = argumentSpans.size / 2
+
+    /**
+     * 所有参数的文本，每次访问都会重新生成
+     */
     val arguments: List<String>
-) : BaseTreeNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream)
+        get() = List(argumentCount) { getArgument(it) }
+
+    /**
+     * 获取第 [index] 个参数的文本（不包含空白和注释）
+     */
+    fun getArgument(index: Int): String {
+        val builder = StringBuilder()
+        for (i in argumentSpans[index * 2]..argumentSpans[index * 2 + 1]) {
+            val token = tokenStream.get(i)
+            if (token.channel == Token.DEFAULT_CHANNEL) {
+                builder.append(token.text)
+            }
+        }
+        return builder.toString()
+    }
+
+    /**
+     * 参数是否与另一个函数调用完全一致
+     */
+    fun sameArguments(other: ScrFunCallScriptNode): Boolean {
+        if (argumentCount != other.argumentCount) {
+            return false
+        }
+        for (i in 0 until argumentCount) {
+            if (getArgument(i) != other.getArgument(i)) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * 按顺序组合每个参数的文本（与 [sameArguments] 的对比规则一致）：
+     * 参数之间的空白和注释不影响结果，字符串等Token内部的空白仍然参与计算
+     */
+    override fun computeContentHash(): Long {
+        return ContentHash.ordered(javaClass, 0 until argumentCount) { ContentHash.text(String::class.java, getArgument(it)) }
+    }
+}
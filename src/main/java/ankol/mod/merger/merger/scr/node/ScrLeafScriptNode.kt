@@ -1,6 +1,7 @@
 package ankol.mod.merger.merger.scr.node
 
 import ankol.mod.merger.core.BaseTreeNode
+import ankol.mod.merger.core.ContentHash
 import org.antlr.v4.runtime.TokenStream
 
 /**
@@ -12,4 +13,11 @@ class ScrLeafScriptNode(
     stopTokenIndex: Int,
     line: Int,
     tokenStream: TokenStream
-) : BaseTreeNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream)
+) : BaseTreeNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream) {
+    /**
+     * 忽略空白，与合并器对比叶子节点的规则一致
+     */
+    override fun computeContentHash(): Long {
+        return ContentHash.text(javaClass, sourceText, ignoreWhitespace = true)
+    }
+}
@@ -4,9 +4,12 @@ import ankol.mod.merger.antlr.xml.TechlandXMLLexer
 import ankol.mod.merger.antlr.xml.TechlandXMLParser
 import ankol.mod.merger.constants.UserChoice
 import ankol.mod.merger.core.AbstractFileMerger
-import ankol.mod.merger.core.ConflictResolver.resolveConflict
+import ankol.mod.merger.core.MergeSession
+import ankol.mod.merger.core.MergedDocument
 import ankol.mod.merger.core.MergerContext
 import ankol.mod.merger.core.ParsedResult
+import ankol.mod.merger.core.ParserRuntime
+import ankol.mod.merger.core.SignatureInterner
 import ankol.mod.merger.core.filetrees.AbstractFileTree
 import ankol.mod.merger.exception.BusinessException
 import ankol.mod.merger.merger.ConflictRecord
@@ -18,81 +21,68 @@ import ankol.mod.merger.tools.logger
 import org.antlr.v4.runtime.CharStream
 import org.antlr.v4.runtime.CharStreams
 import org.antlr.v4.runtime.CommonTokenStream
-import org.antlr.v4.runtime.TokenStreamRewriter
 
 /**
  * XML文件合并器
  * 
  * @author Ankol
  */
-class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context) {
+class TechlandXmlFileMerger : AbstractFileMerger() {
     private val log = logger()
 
-    /**
-     * 冲突项列表
-     */
-    private val conflicts = ArrayList<ConflictRecord>()
-
     /**
      * 新增节点记录
      */
     private data class NewNodeRecord(
         val parentContainer: XmlContainerNode,
         val previousSibling: XmlNode?,
+        val signature: String,
         val newNode: XmlNode
     )
 
     /**
-     * 新增节点列表
-     */
-    private val newNodes = ArrayList<NewNodeRecord>()
-
-    /**
-     * 原始基准MOD对应文件的语法树
+     * XML合并会话，额外记录新增节点
      */
-    private var originalBaseModRoot: XmlContainerNode? = null
+    private class XmlMergeSession(
+        context: MergerContext,
+        originalBaseModRoot: XmlContainerNode?,
+        val document: MergedDocument
+    ) : MergeSession<XmlContainerNode>(context, originalBaseModRoot) {
+        val newNodes = ArrayList<NewNodeRecord>()
+    }
 
-    override fun merge(file1: AbstractFileTree, file2: AbstractFileTree): MergeResult {
+    override fun mergeAll(base: AbstractFileTree, mods: List<AbstractFileTree>, context: MergerContext): MergeResult {
         try {
-            val parsedResult = context.baseModManager.parseForm(file1.fileEntryName) { parseContent(it) }
-            // 解析原始基准MOD文件（如果存在）
-            if (parsedResult != null) {
-                originalBaseModRoot = parsedResult.astNode
+            // 签名驻留表只在解析本文件的各个版本时使用，解析完成后释放
+            val (parsedResult, parsedFiles) = SignatureInterner.scoped {
+                // 解析原始基准MOD文件（如果存在）
+                val original = context.baseModManager.parseForm(base.fileEntryName) { parseContent(it) }
+                // 依次解析base和所有mod文件，每个版本只解析一次（不同文件的合并已经在工作线程中并行执行）
+                original to (listOf(base) + mods).map { parseFile(it) }
             }
-            // 解析base和mod文件
-            val baseResult = parseFile(file1)
-            val modResult = parseFile(file2)
+            val baseResult = parsedFiles[0]
             val baseRoot = baseResult.astNode!!
-            val modRoot = modResult.astNode!!
-
-            // 递归对比
-            reduceCompare(originalBaseModRoot, baseRoot, modRoot)
+            val document = MergedDocument()
+            val baseIsOriginal = context.isFirstModMergeWithBaseMod
+            var hasConflicts = false
 
-            // 第一个mod与原版文件的对比
-            if (context.isFirstModMergeWithBaseMod && !conflicts.isEmpty()) {
-                for (record in conflicts) {
-                    if (record.conflictType == ConflictType.REMOVAL) {
-                        // 删除类型冲突：MOD缺少原版节点，应该保留原版（补回缺失的代码）
-                        record.userChoice = UserChoice.BASE_MOD
-                    } else {
-                        // 普通修改冲突：使用MOD修改的版本
-                        record.userChoice = UserChoice.MERGE_MOD
-                    }
+            for (i in mods.indices) {
+                prepareStep(context, base, mods, i, baseIsOriginal)
+                val session = XmlMergeSession(context, parsedResult?.astNode, document)
+                // 递归对比，base为之前所有mod合并后的语法树
+                reduceCompare(session, session.originalBaseModRoot, baseRoot, parsedFiles[i + 1].astNode!!)
+                // 处理冲突（第一个mod与原版文件的对比自动处理，否则提示用户）
+                if (!session.resolveConflicts()) {
+                    // 存在需要用户选择的冲突，之后的对比依赖用户的选择，等待统一处理后重新合并
+                    return MergeResult.DEFERRED
                 }
-            } else if (!conflicts.isEmpty()) {
-                // 正常情况下，提示用户解决冲突
-                resolveConflict(conflicts)
+                applyChanges(session)
+                hasConflicts = hasConflicts || session.conflicts.isNotEmpty()
             }
-
-            return MergeResult(getMergedContent(baseResult), !conflicts.isEmpty())
+            return MergeResult(document.render(baseResult.tokenStream), hasConflicts)
         } catch (e: Exception) {
-            log.error("Error during XML file merge: ${file1.fileName} Reason: ${e.message}", e)
-            throw BusinessException("文件${file1.fileName}合并失败")
-        } finally {
-            // 清理状态，准备下一个文件合并
-            conflicts.clear()
-            newNodes.clear()
-            originalBaseModRoot = null
+            log.error("Error during XML file merge: ${base.fileName} Reason: ${e.message}", e)
+            throw BusinessException("文件${base.fileName}合并失败")
         }
     }
 
@@ -100,10 +90,15 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
      * 递归对比树节点
      */
     private fun reduceCompare(
+        session: XmlMergeSession,
         originalContainer: XmlContainerNode?,
         baseContainer: XmlContainerNode,
         modContainer: XmlContainerNode
     ) {
+        // 子树哈希相同，MOD不会带来任何修改，跳过整棵子树
+        if (session.document.isUnchanged(originalContainer, baseContainer, modContainer)) {
+            return
+        }
         // 遍历Mod的所有子节点
         var previousSiblingInBase: XmlNode? = null // 追踪前一个兄弟节点
         for ((signature, modNode) in modContainer.childrens) {
@@ -114,18 +109,19 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
                     originalNode = originalContainer.childrens[signature]
                 }
 
-                val baseNode = baseContainer.childrens[signature]
+                val slot = baseContainer.childrens[signature]
+                val baseNode = session.document.current(slot)
 
                 if (baseNode == null) {
                     // Base中不存在这个节点 - 新增节点，需要添加到合并结果中
                     // 记录前一个兄弟节点，用于确定插入位置
-                    newNodes.add(NewNodeRecord(baseContainer, previousSiblingInBase, modNode))
+                    session.newNodes.add(NewNodeRecord(baseContainer, previousSiblingInBase, signature, modNode))
                 } else {
-                    // 更新前一个兄弟节点
-                    previousSiblingInBase = baseNode
+                    // 更新前一个兄弟节点（使用节点在容器中原本的位置，节点可能已被其他MOD的版本替换）
+                    previousSiblingInBase = slot
                     //容器节点，继续递归对比
                     if (baseNode is XmlContainerNode && modNode is XmlContainerNode) {
-                        reduceCompare(originalNode as XmlContainerNode?, baseNode, modNode)
+                        reduceCompare(session, originalNode as XmlContainerNode?, baseNode, modNode)
                     }
                     //叶子节点，对比属性
                     else if (baseNode !is XmlContainerNode && modNode !is XmlContainerNode) {
@@ -134,12 +130,12 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
                         val modAttr = modNode.attributes
                         if (baseAttr != modAttr) {
                             // 不相同，检查是否跟基准mod的一样，不一样视为冲突
-                            if (!isNodeSameAsOriginalBaseMod(originalNode, modNode)) {
-                                conflicts.add(
+                            if (!isNodeSameAsOriginalBaseMod(session, originalNode, modNode)) {
+                                session.conflicts.add(
                                     ConflictRecord(
-                                        context.fileName,
-                                        context.mod1Name,
-                                        context.mod2Name,
+                                        session.context.fileName,
+                                        session.context.mod1Name,
+                                        session.context.mod2Name,
                                         signature,
                                         baseNode,
                                         modNode
@@ -149,12 +145,12 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
                         }
                     } else {
                         // 一个是容器，一个不是容器，这种情况下认为是冲突
-                        if (!isNodeSameAsOriginalBaseMod(originalNode, modNode)) {
-                            conflicts.add(
+                        if (!isNodeSameAsOriginalBaseMod(session, originalNode, modNode)) {
+                            session.conflicts.add(
                                 ConflictRecord(
-                                    context.fileName,
-                                    context.mod1Name,
-                                    context.mod2Name,
+                                    session.context.fileName,
+                                    session.context.mod1Name,
+                                    session.context.mod2Name,
                                     signature,
                                     baseNode,
                                     modNode
@@ -169,18 +165,20 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
         }
 
         // 检测被MOD删除的节点（base有，但mod没有）
-        detectRemovedNodes(originalContainer, baseContainer, modContainer)
+        detectRemovedNodes(session, originalContainer, baseContainer, modContainer)
     }
 
     /**
      * 检测被MOD删除/注释的节点
      */
     private fun detectRemovedNodes(
+        session: XmlMergeSession,
         originalContainer: XmlContainerNode?,
         baseContainer: XmlContainerNode,
         modContainer: XmlContainerNode
     ) {
-        for ((signature, baseNode) in baseContainer.childrens) {
+        for ((signature, slot) in baseContainer.childrens) {
+            val baseNode = session.document.current(slot) ?: continue
             val modNode = modContainer.childrens[signature]
 
             // base有，但mod没有 -> 可能是删除
@@ -191,11 +189,11 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
                 if (originalNode != null) {
                     // 原版有这个节点，MOD也应该有但却没有
                     // 这说明MOD故意删除了这个节点，需要提示用户
-                    conflicts.add(
+                    session.conflicts.add(
                         ConflictRecord(
-                            context.fileName,
-                            context.mod1Name,
-                            context.mod2Name,
+                            session.context.fileName,
+                            session.context.mod1Name,
+                            session.context.mod2Name,
                             signature,
                             baseNode,
                             null, // modNode为null表示删除
@@ -210,58 +208,53 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
     }
 
     /**
-     * 获取合并后的内容
+     * 将本轮对比的结果应用到合并文档，并更新合并后的语法树，供下一轮对比使用
      */
-    private fun getMergedContent(baseResult: ParsedResult<*>): String {
-        val rewriter = TokenStreamRewriter(baseResult.tokenStream)
+    private fun applyChanges(session: XmlMergeSession) {
+        val document = session.document
         // 处理冲突节点的替换
-        for (record in conflicts) {
+        for (record in session.conflicts) {
             if (record.conflictType == ConflictType.REMOVAL) {
                 // 删除类型的冲突
                 if (record.userChoice == UserChoice.MERGE_MOD) {
                     // 用户选择使用MOD的版本（即删除该节点）
-                    val baseNode = record.baseNode
-                    rewriter.delete(baseNode.startTokenIndex, baseNode.stopTokenIndex)
+                    document.delete(record.baseNode)
                 }
                 // 如果选择 BASE_MOD，则保留原内容，不做任何操作
             } else if (record.userChoice == UserChoice.MERGE_MOD) {
                 // 普通修改冲突：用户选择了 Mod
-                val baseNode = record.baseNode
                 val modNode = record.modNode
                 if (modNode != null) {
-                    rewriter.replace(
-                        baseNode.startTokenIndex,
-                        baseNode.stopTokenIndex,
-                        modNode.sourceText
-                    )
+                    document.replace(record.baseNode, modNode)
                 }
             }
         }
 
         // 处理新增节点的插入
-        for (record in newNodes) {
+        for (record in session.newNodes) {
             val previousSibling = record.previousSibling
-            val newNode = record.newNode
+            val parentContainer = record.parentContainer
 
             val insertPosition = if (previousSibling != null) {
                 // 如果有前一个兄弟节点，在其后面插入
-                // 使用stopTokenIndex + 1
-                previousSibling.stopTokenIndex + 1
+                document.positionAfter(previousSibling)
             } else {
                 // 如果没有前一个兄弟节点（即这是第一个子节点），在父容器的结束标签前面插入
-                record.parentContainer.stopTokenIndex
+                MergedDocument.InsertPosition(parentContainer.tokenStream, parentContainer.stopTokenIndex)
             }
-            rewriter.insertBefore(insertPosition, "\n" + newNode.sourceText)
+            document.insertBefore(insertPosition, record.newNode, "\n", record.newNode)
+            parentContainer.childrens[record.signature] = record.newNode
+            document.markModified(parentContainer)
         }
-        return rewriter.text
+        document.endStep()
     }
 
     /**
      * 检查节点是否与原始基准MOD中的对应节点内容相同
      */
-    private fun isNodeSameAsOriginalBaseMod(originalNode: XmlNode?, modNode: XmlNode): Boolean {
+    private fun isNodeSameAsOriginalBaseMod(session: XmlMergeSession, originalNode: XmlNode?, modNode: XmlNode): Boolean {
         // 如果没有原始基准MOD，则认为不相同
-        if (originalBaseModRoot == null) {
+        if (session.originalBaseModRoot == null) {
             return false
         }
         if (originalNode == null) {
@@ -275,19 +268,29 @@ class TechlandXmlFileMerger(context: MergerContext) : AbstractFileMerger(context
      * 将XML文件解析成语法树
      */
     private fun parseFile(filePath: AbstractFileTree): ParsedResult<XmlContainerNode> {
-        return parseContent(filePath.getContent())
+        return parseStream(filePath.openCharStream())
+    }
+
+    override fun warmUp() {
+        ParserRuntime.warmUp("sample.xml") { parseContent(it) }
     }
 
     /**
      * 解析字符串内容为ParseResult
      */
     private fun parseContent(content: String): ParsedResult<XmlContainerNode> {
-        val input: CharStream = CharStreams.fromString(content)
-        val lexer = TechlandXMLLexer(input)
+        return parseStream(CharStreams.fromString(content))
+    }
+
+    /**
+     * 解析字符流为ParseResult
+     */
+    private fun parseStream(input: CharStream): ParsedResult<XmlContainerNode> {
+        val lexer = ParserRuntime.lexer(TechlandXMLLexer(input))
         val tokens = CommonTokenStream(lexer)
         val parser = TechlandXMLParser(tokens)
         val visitor = TechlandXmlFileVisitor(tokens)
-        val root = visitor.visitDocument(parser.document())
+        val root = visitor.visitDocument(ParserRuntime.parse(parser) { it.document() })
         return ParsedResult(root as XmlContainerNode, tokens)
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package ankol.mod.merger.merger.xml.node
 
+import ankol.mod.merger.core.ContentHash
 import ankol.mod.merger.tools.logger
 import org.antlr.v4.runtime.CommonTokenStream
 
@@ -17,7 +18,9 @@ class XmlContainerNode(
     tokenStream: CommonTokenStream,
     attributes: MutableMap<String, String>
 ) : XmlNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream, attributes) {
-    private val log = logger()
+    companion object {
+        private val log = logger<XmlContainerNode>()
+    }
     val childrens: MutableMap<String, XmlNode> = LinkedHashMap()
 
     /**
@@ -28,6 +31,14 @@ class XmlContainerNode(
             log.debug("Repeatable siginature detected: [${node.signature}] Line: ${node.lineNumber} SourceText: ${node.sourceText}.")
         }
         childrens[node.signature] = node
+        node.parent = this
+    }
+
+    /**
+     * 只包含子节点，与合并器一致不对比容器自身的属性
+     */
+    override fun computeContentHash(): Long {
+        return ContentHash.unordered(javaClass, childrens) { it.contentHash }
     }
 
     override fun printTree(indent: String) {
@@ -1,5 +1,6 @@
 package ankol.mod.merger.merger.xml.node
 
+import ankol.mod.merger.core.ContentHash
 import org.antlr.v4.runtime.CommonTokenStream
 
 /**
@@ -14,5 +15,12 @@ class XmlLeafNode(
     line: Int,
     tokenStream: CommonTokenStream,
     attributes: MutableMap<String, String>
-) : XmlNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream, attributes)
+) : XmlNode(signature, startTokenIndex, stopTokenIndex, line, tokenStream, attributes) {
+    /**
+     * 只包含属性，与合并器对比叶子节点的规则一致
+     */
+    override fun computeContentHash(): Long {
+        return ContentHash.unordered(javaClass, attributes) { ContentHash.text(String::class.java, it) }
+    }
+}
 
@@ -0,0 +1,170 @@
+package ankol.mod.merger.tools
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import kotlin.math.min
+
+/**
+ * 轻量级的ZIP中央目录读取器
+ *
+ * 将中央目录映射到内存后直接解析其中的记录，不创建 ZipArchiveEntry 等对象，
+ * 只保留合并需要的名称、偏移量、大小和压缩方法，用于索引包含大量条目的大型PAK（例如data0.pak）。
+ *
+ * @author Ankol
+ */
+object CentralDirectoryReader {
+    private const val END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50
+    private const val END_OF_CENTRAL_DIRECTORY_SIZE = 22
+    private const val ZIP64_LOCATOR_SIGNATURE = 0x07064b50
+    private const val ZIP64_LOCATOR_SIZE = 20
+    private const val ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50
+    private const val ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56
+    private const val CENTRAL_FILE_HEADER_SIGNATURE = 0x02014b50
+    private const val CENTRAL_FILE_HEADER_SIZE = 46
+    private const val ZIP64_EXTRA_FIELD_ID = 0x0001
+    private const val ZIP64_MAGIC = 0xFFFFFFFFL
+    private const val ZIP64_MAGIC_SHORT = 0xFFFF
+
+    /**
+     * 中央目录在压缩包中的位置
+     *
+     * @param offset 起始偏移量
+     * @param size 长度
+     * @param entryCount 条目数量
+     */
+    data class Location(val offset: Long, val size: Long, val entryCount: Long)
+
+    /**
+     * 读取压缩包的中央目录，建立索引
+     *
+     * @param archivePath 压缩包路径
+     */
+    fun read(archivePath: Path): PakIndex {
+        FileChannel.open(archivePath).use { channel ->
+            val location = locate(channel, archivePath)
+            if (location.size > Int.MAX_VALUE) {
+                throw IOException("Central directory is too large: $archivePath")
+            }
+            val buffer = channel.map(FileChannel.MapMode.READ_ONLY, location.offset, location.size)
+                .order(ByteOrder.LITTLE_ENDIAN)
+            val builder = PakIndex.Builder(archivePath, min(location.entryCount, Int.MAX_VALUE.toLong()).toInt())
+            var nameBytes = ByteArray(256)
+            var position = 0
+            while (position + CENTRAL_FILE_HEADER_SIZE <= buffer.limit()) {
+                if (buffer.getInt(position) != CENTRAL_FILE_HEADER_SIGNATURE) {
+                    break
+                }
+                val flag = buffer.getShort(position + 8).toInt() and 0xFFFF
+                val method = buffer.getShort(position + 10).toInt() and 0xFFFF
+                val crc = buffer.getInt(position + 16).toLong() and ZIP64_MAGIC
+                var compressedSize = buffer.getInt(position + 20).toLong() and ZIP64_MAGIC
+                var size = buffer.getInt(position + 24).toLong() and ZIP64_MAGIC
+                val nameLength = buffer.getShort(position + 28).toInt() and 0xFFFF
+                val extraLength = buffer.getShort(position + 30).toInt() and 0xFFFF
+                val commentLength = buffer.getShort(position + 32).toInt() and 0xFFFF
+                var localHeaderOffset = buffer.getInt(position + 42).toLong() and ZIP64_MAGIC
+
+                val nameStart = position + CENTRAL_FILE_HEADER_SIZE
+                if (nameBytes.size < nameLength) {
+                    nameBytes = ByteArray(nameLength * 2)
+                }
+                buffer.get(nameStart, nameBytes, 0, nameLength)
+
+                // ZIP64扩展字段中按顺序保存了值为0xFFFFFFFF的字段的真实值
+                if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                    var extraPosition = nameStart + nameLength
+                    val extraEnd = extraPosition + extraLength
+                    while (extraPosition + 4 <= extraEnd) {
+                        val headerId = buffer.getShort(extraPosition).toInt() and 0xFFFF
+                        val dataSize = buffer.getShort(extraPosition + 2).toInt() and 0xFFFF
+                        if (headerId == ZIP64_EXTRA_FIELD_ID) {
+                            var valuePosition = extraPosition + 4
+                            if (size == ZIP64_MAGIC) {
+                                size = buffer.getLong(valuePosition)
+                                valuePosition += 8
+                            }
+                            if (compressedSize == ZIP64_MAGIC) {
+                                compressedSize = buffer.getLong(valuePosition)
+                                valuePosition += 8
+                            }
+                            if (localHeaderOffset == ZIP64_MAGIC) {
+                                localHeaderOffset = buffer.getLong(valuePosition)
+                            }
+                            break
+                        }
+                        extraPosition += 4 + dataSize
+                    }
+                }
+                position = nameStart + nameLength + extraLength + commentLength
+
+                // 目录条目不需要索引
+                if (nameLength == 0 || nameBytes[nameLength - 1] == '/'.code.toByte()) {
+                    continue
+                }
+                // “/”在UTF-8中只会以单字节出现，可以直接按字节拆分目录与文件名
+                var separator = nameLength - 1
+                while (separator >= 0 && nameBytes[separator] != '/'.code.toByte()) {
+                    separator--
+                }
+                val directory = if (separator < 0) "" else String(nameBytes, 0, separator, Charsets.UTF_8)
+                val fileName = String(nameBytes, separator + 1, nameLength - separator - 1, Charsets.UTF_8)
+                builder.add(directory, fileName, localHeaderOffset, compressedSize, size, method, crc, flag)
+            }
+            return builder.build()
+        }
+    }
+
+    /**
+     * 通过中央目录结束记录定位中央目录，支持ZIP64
+     *
+     * @param channel 压缩包文件通道
+     * @param archivePath 压缩包路径，仅用于错误信息
+     */
+    fun locate(channel: FileChannel, archivePath: Path): Location {
+        val fileSize = channel.size()
+        // 中央目录结束记录位于文件末尾，后面最多跟着64KB的注释
+        val tailSize = min(fileSize, (END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF).toLong()).toInt()
+        val tailStart = fileSize - tailSize
+        val tail = readFully(channel, tailStart, tailSize, archivePath)
+        var eocdPosition = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE
+        while (eocdPosition >= 0 && tail.getInt(eocdPosition) != END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            eocdPosition--
+        }
+        if (eocdPosition < 0) {
+            throw IOException("End of central directory record not found in: $archivePath")
+        }
+        val entryCount = tail.getShort(eocdPosition + 10).toInt() and 0xFFFF
+        val size = tail.getInt(eocdPosition + 12).toLong() and ZIP64_MAGIC
+        val offset = tail.getInt(eocdPosition + 16).toLong() and ZIP64_MAGIC
+        if (entryCount != ZIP64_MAGIC_SHORT && size != ZIP64_MAGIC && offset != ZIP64_MAGIC) {
+            return Location(offset, size, entryCount.toLong())
+        }
+        val locatorPosition = tailStart + eocdPosition - ZIP64_LOCATOR_SIZE
+        if (locatorPosition < 0) {
+            return Location(offset, size, entryCount.toLong())
+        }
+        val locator = readFully(channel, locatorPosition, ZIP64_LOCATOR_SIZE, archivePath)
+        if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+            //条目数量恰好为0xFFFF的普通压缩包
+            return Location(offset, size, entryCount.toLong())
+        }
+        val zip64Eocd = readFully(channel, locator.getLong(8), ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE, archivePath)
+        if (zip64Eocd.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+            throw IOException("Invalid ZIP64 end of central directory record in: $archivePath")
+        }
+        return Location(zip64Eocd.getLong(48), zip64Eocd.getLong(40), zip64Eocd.getLong(32))
+    }
+
+    private fun readFully(channel: FileChannel, position: Long, size: Int, archivePath: Path): ByteBuffer {
+        val buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw IOException("Unexpected end of file: $archivePath")
+            }
+        }
+        return buffer
+    }
+}
@@ -0,0 +1,67 @@
+package ankol.mod.merger.tools
+
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import kotlin.math.min
+
+/**
+ * 读取文件通道中某一段区间的输入流
+ *
+ * 使用定位读取（positional read），不修改通道自身的 position，
+ * 因此同一个通道可以被多个区间流同时读取。
+ *
+ * @param channel 文件通道
+ * @param start 区间起始偏移量
+ * @param length 区间长度
+ * @param closeChannel 关闭流时是否同时关闭通道
+ * @author Ankol
+ */
+class ChannelRangeInputStream(
+    private val channel: FileChannel,
+    start: Long,
+    length: Long,
+    private val closeChannel: Boolean = true
+) : InputStream() {
+    private var position = start
+    private val end = start + length
+
+    override fun read(): Int {
+        val single = ByteArray(1)
+        return if (read(single, 0, 1) == -1) -1 else single[0].toInt() and 0xFF
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        val remaining = end - position
+        if (remaining <= 0) {
+            return -1
+        }
+        val buffer = ByteBuffer.wrap(b, off, min(len.toLong(), remaining).toInt())
+        val read = channel.read(buffer, position)
+        if (read == -1) {
+            throw IOException("Unexpected end of channel at position $position, expected end: $end")
+        }
+        position += read
+        return read
+    }
+
+    override fun skip(n: Long): Long {
+        val skipped = min(n, end - position).coerceAtLeast(0)
+        position += skipped
+        return skipped
+    }
+
+    override fun available(): Int {
+        return min(end - position, Int.MAX_VALUE.toLong()).toInt()
+    }
+
+    override fun close() {
+        if (closeChannel) {
+            channel.close()
+        }
+    }
+}
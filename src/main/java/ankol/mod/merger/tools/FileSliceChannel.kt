@@ -0,0 +1,80 @@
+package ankol.mod.merger.tools
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.channels.NonWritableChannelException
+import java.nio.channels.SeekableByteChannel
+
+/**
+ * 文件中某一段区间的只读通道，区间的起始位置对外表现为位置0
+ *
+ * 用于直接打开以 STORED 方式保存在外层压缩包中的嵌套压缩包，不需要先把它写到磁盘上。
+ * 与 [ChannelRangeInputStream] 一样使用定位读取，不修改底层通道的 position
+ *
+ * @param channel 文件通道，关闭本通道时一起关闭
+ * @param start 区间起始偏移量
+ * @param size 区间长度
+ * @author Ankol
+ */
+class FileSliceChannel(
+    private val channel: FileChannel,
+    private val start: Long,
+    private val size: Long
+) : SeekableByteChannel {
+    private var position = 0L
+
+    override fun read(dst: ByteBuffer): Int {
+        val remaining = size - position
+        if (remaining <= 0) {
+            return -1
+        }
+        if (!dst.hasRemaining()) {
+            return 0
+        }
+        val limit = dst.limit()
+        if (dst.remaining() > remaining) {
+            dst.limit(dst.position() + remaining.toInt())
+        }
+        try {
+            val read = channel.read(dst, start + position)
+            if (read == -1) {
+                throw IOException("Unexpected end of channel at position ${start + position}, expected end: ${start + size}")
+            }
+            position += read
+            return read
+        } finally {
+            dst.limit(limit)
+        }
+    }
+
+    override fun write(src: ByteBuffer): Int {
+        throw NonWritableChannelException()
+    }
+
+    override fun position(): Long {
+        return position
+    }
+
+    override fun position(newPosition: Long): SeekableByteChannel {
+        require(newPosition >= 0) { "Negative position: $newPosition" }
+        position = newPosition
+        return this
+    }
+
+    override fun size(): Long {
+        return size
+    }
+
+    override fun truncate(size: Long): SeekableByteChannel {
+        throw NonWritableChannelException()
+    }
+
+    override fun isOpen(): Boolean {
+        return channel.isOpen
+    }
+
+    override fun close() {
+        channel.close()
+    }
+}
@@ -0,0 +1,78 @@
+package ankol.mod.merger.tools
+
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+
+/**
+ * 文件读写执行器
+ *
+ * 阻塞的文件读写在虚拟线程中执行，合并使用的平台线程只负责解析与合并，不会因为等待磁盘而空闲。
+ * 虚拟线程的数量没有限制，同一个磁盘（[java.nio.file.FileStore]）上同时进行的读写数量不超过 [maxConcurrencyPerDisk]，
+ * 不同磁盘之间互不影响。
+ *
+ * @author Ankol
+ */
+object IoExecutor {
+    private val log = logger()
+
+    /**
+     * 每个磁盘上同时进行的读写数量上限，需要在第一次提交任务之前设置
+     */
+    @Volatile
+    var maxConcurrencyPerDisk = 32
+
+    private val executor = Executors.newVirtualThreadPerTaskExecutor()
+
+    /**
+     * 磁盘 -> 并发限制
+     */
+    private val diskLimits = ConcurrentHashMap<Any, Semaphore>()
+
+    /**
+     * 目录 -> 所在的磁盘，避免每次读写都查询文件系统
+     */
+    private val diskOfDirectory = ConcurrentHashMap<Path, Any>()
+
+    /**
+     * 在虚拟线程中执行读写操作
+     *
+     * @param path 读写的文件，用于确定所在的磁盘
+     * @param action 读写操作
+     */
+    fun <T> submit(path: Path, action: () -> T): CompletableFuture<T> {
+        val limit = diskLimits.computeIfAbsent(diskOf(path)) { Semaphore(maxConcurrencyPerDisk) }
+        return CompletableFuture.supplyAsync({
+            limit.acquire()
+            try {
+                action()
+            } finally {
+                limit.release()
+            }
+        }, executor)
+    }
+
+    /**
+     * 文件所在的磁盘，文件还不存在时使用最近的已存在的上级目录，无法获取时按路径的根目录区分
+     */
+    private fun diskOf(path: Path): Any {
+        val absolutePath = path.toAbsolutePath()
+        val directory = absolutePath.parent ?: absolutePath
+        return diskOfDirectory.computeIfAbsent(directory) {
+            var existing: Path? = it
+            while (existing != null && Files.notExists(existing)) {
+                existing = existing.parent
+            }
+            try {
+                Files.getFileStore(existing ?: it)
+            } catch (e: IOException) {
+                log.debug("Failed to get file store of '{}': {}", it, e.message)
+                it.root ?: it
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package ankol.mod.merger.tools
+
+import ankol.mod.merger.core.filetrees.ArchiveEntrySource
+import org.apache.commons.compress.archivers.zip.ZipMethod
+import java.nio.file.Path
+
+/**
+ * PAK文件索引，使用基本类型数组保存中央目录中的条目信息
+ *
+ * 条目名称拆分为目录与文件名两部分保存，相同的目录只保存一份，
+ * 对于包含大量条目的基准MOD（data0.pak），占用的内存远小于完整的 ZipArchiveEntry 对象。
+ *
+ * 按文件名查找条目时，同名文件以中央目录中靠后的条目为准。
+ *
+ * @param archivePath 压缩包路径
+ * @author Ankol
+ */
+class PakIndex private constructor(
+    val archivePath: Path,
+    /**
+     * 去重后的目录名称（不含末尾的“/”），根目录为空字符串
+     */
+    val directories: Array<String>,
+    val directoryIds: IntArray,
+    val fileNames: Array<String>,
+    val localHeaderOffsets: LongArray,
+    val compressedSizes: LongArray,
+    val sizes: LongArray,
+    val methods: IntArray,
+    val crcs: LongArray,
+    /**
+     * 通用标志位（general purpose bit flag）
+     */
+    val flags: IntArray
+) {
+    companion object {
+        private const val ENCRYPTION_FLAG = 1
+    }
+
+    /**
+     * 文件名 → 条目位置
+     */
+    private val fileNameLookup = HashMap<String, Int>(fileNames.size * 2)
+
+    /**
+     * 被同名文件覆盖的条目，每一项为（被覆盖的条目位置，生效的条目位置）
+     */
+    val shadowedEntries: List<Pair<Int, Int>>
+
+    init {
+        val shadowed = ArrayList<Pair<Int, Int>>()
+        for (i in fileNames.indices) {
+            fileNameLookup.put(fileNames[i], i)?.let { shadowed.add(Pair(it, i)) }
+        }
+        shadowedEntries = shadowed
+    }
+
+    /**
+     * 条目数量
+     */
+    val size: Int
+        get() = fileNames.size
+
+    /**
+     * 按文件名查找条目位置
+     *
+     * @return 条目位置，不存在时返回-1
+     */
+    fun findByFileName(fileName: String): Int {
+        return fileNameLookup[fileName] ?: -1
+    }
+
+    /**
+     * 获取条目在压缩包中的全路径
+     */
+    fun entryName(position: Int): String {
+        val directory = directories[directoryIds[position]]
+        return if (directory.isEmpty()) fileNames[position] else "$directory/${fileNames[position]}"
+    }
+
+    /**
+     * 获取条目的数据来源，不支持直接读取（加密或者不支持的压缩方式）时返回null
+     */
+    fun entrySource(position: Int): ArchiveEntrySource? {
+        if (flags[position] and ENCRYPTION_FLAG != 0) {
+            return null
+        }
+        val method = methods[position]
+        if (method != ZipMethod.STORED.code && method != ZipMethod.DEFLATED.code) {
+            return null
+        }
+        return ArchiveEntrySource(
+            archivePath,
+            entryName(position),
+            localHeaderOffsets[position],
+            compressedSizes[position],
+            sizes[position],
+            method,
+            crcs[position]
+        )
+    }
+
+    /**
+     * 索引构建器，负责目录名称去重以及数组扩容
+     *
+     * @param archivePath 压缩包路径
+     * @param expectedSize 预计的条目数量
+     */
+    class Builder(private val archivePath: Path, expectedSize: Int) {
+        private val directoryIdMap = HashMap<String, Int>()
+        private val directories = ArrayList<String>()
+        private var count = 0
+        private var directoryIds = IntArray(expectedSize)
+        private var fileNames = arrayOfNulls<String>(expectedSize)
+        private var localHeaderOffsets = LongArray(expectedSize)
+        private var compressedSizes = LongArray(expectedSize)
+        private var sizes = LongArray(expectedSize)
+        private var methods = IntArray(expectedSize)
+        private var crcs = LongArray(expectedSize)
+        private var flags = IntArray(expectedSize)
+
+        /**
+         * 添加条目
+         *
+         * @param directory 条目所在目录（不含末尾的“/”），根目录为空字符串
+         * @param fileName 文件名
+         */
+        fun add(
+            directory: String,
+            fileName: String,
+            localHeaderOffset: Long,
+            compressedSize: Long,
+            size: Long,
+            method: Int,
+            crc: Long,
+            flag: Int
+        ) {
+            if (count == fileNames.size) {
+                grow()
+            }
+            directoryIds[count] = directoryIdMap.getOrPut(directory) {
+                directories.add(directory)
+                directories.size - 1
+            }
+            fileNames[count] = fileName
+            localHeaderOffsets[count] = localHeaderOffset
+            compressedSizes[count] = compressedSize
+            sizes[count] = size
+            methods[count] = method
+            crcs[count] = crc
+            flags[count] = flag
+            count++
+        }
+
+        private fun grow() {
+            val newSize = maxOf(16, fileNames.size * 2)
+            directoryIds = directoryIds.copyOf(newSize)
+            fileNames = fileNames.copyOf(newSize)
+            localHeaderOffsets = localHeaderOffsets.copyOf(newSize)
+            compressedSizes = compressedSizes.copyOf(newSize)
+            sizes = sizes.copyOf(newSize)
+            methods = methods.copyOf(newSize)
+            crcs = crcs.copyOf(newSize)
+            flags = flags.copyOf(newSize)
+        }
+
+        fun build(): PakIndex {
+            @Suppress("UNCHECKED_CAST")
+            return PakIndex(
+                archivePath,
+                directories.toTypedArray(),
+                directoryIds.copyOf(count),
+                fileNames.copyOf(count) as Array<String>,
+                localHeaderOffsets.copyOf(count),
+                compressedSizes.copyOf(count),
+                sizes.copyOf(count),
+                methods.copyOf(count),
+                crcs.copyOf(count),
+                flags.copyOf(count)
+            )
+        }
+    }
+}
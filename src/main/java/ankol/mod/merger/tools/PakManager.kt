@@ -1,26 +1,34 @@
 package ankol.mod.merger.tools
 
+import ankol.mod.merger.core.filetrees.ArchiveEntrySource
 import ankol.mod.merger.core.filetrees.PathFileTree
 import ankol.mod.merger.tools.Localizations.t
 import ankol.mod.merger.tools.Tools.bytesToHex
 import ankol.mod.merger.tools.Tools.getEntryFileName
-import org.apache.commons.compress.archivers.sevenz.SevenZFile
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream
 import org.apache.commons.compress.archivers.zip.ZipFile
+import org.apache.commons.compress.archivers.zip.ZipMethod
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel
 import org.apache.commons.lang3.Strings
 import java.io.File
 import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.channels.SeekableByteChannel
 import java.nio.charset.StandardCharsets
 import java.nio.file.Files
 import java.nio.file.Path
 import java.security.DigestInputStream
-import java.security.DigestOutputStream
 import java.security.MessageDigest
+import java.util.IdentityHashMap
+import java.util.concurrent.ForkJoinTask
 import java.util.concurrent.atomic.AtomicInteger
 import kotlin.io.path.createDirectories
 import kotlin.io.path.createFile
+import kotlin.io.path.fileSize
 import kotlin.io.path.isRegularFile
+import kotlin.math.min
 
 /**
  * .pak文件管理工具
@@ -32,10 +40,69 @@ object PakManager {
     private val NESTED_COUNTER = AtomicInteger(0)
 
     /**
-     * 从 .pak 文件中提取所有文件到临时目录（支持递归解压嵌套压缩包）
+     * 嵌套压缩包不超过这个大小时读取到内存中打开，更大的仍然写到临时目录。
+     * 内存中的ZIP在整个合并过程中都会被其中的文件引用，因此只用于较小的压缩包
+     */
+    private const val IN_MEMORY_ARCHIVE_LIMIT = 16L * 1024 * 1024
+
+    /**
+     * 压缩包数据所在的位置
+     */
+    private sealed interface ArchiveData {
+        /**
+         * 数据所在的磁盘文件，在内存中时为读取来源的磁盘文件，仅用于提示
+         */
+        val path: Path
+
+        fun openChannel(): SeekableByteChannel
+
+        /**
+         * 直接引用压缩包中的条目
+         */
+        fun entrySource(entry: ZipArchiveEntry): ArchiveEntrySource
+
+        /**
+         * 磁盘文件中的一段区间：磁盘上的压缩包本身，或者以 STORED 方式保存在外层压缩包中的嵌套压缩包
+         *
+         * @param path 磁盘上的文件
+         * @param offset 压缩包在文件中的起始偏移量
+         * @param size 压缩包长度
+         */
+        class FileRegion(override val path: Path, val offset: Long, val size: Long) : ArchiveData {
+            override fun openChannel(): SeekableByteChannel {
+                val channel = FileChannel.open(path)
+                // 整个文件就是压缩包时直接使用文件通道
+                return if (offset == 0L && size == channel.size()) channel else FileSliceChannel(channel, offset, size)
+            }
+
+            override fun entrySource(entry: ZipArchiveEntry): ArchiveEntrySource {
+                return ArchiveEntrySource.of(path, entry, offset)
+            }
+        }
+
+        /**
+         * 已经读取到内存中的嵌套压缩包
+         */
+        class Memory(override val path: Path, val bytes: ByteArray) : ArchiveData {
+            override fun openChannel(): SeekableByteChannel {
+                return SeekableInMemoryByteChannel(bytes)
+            }
+
+            override fun entrySource(entry: ZipArchiveEntry): ArchiveEntrySource {
+                return ArchiveEntrySource.of(path, entry, inMemoryArchive = bytes)
+            }
+        }
+    }
+
+    /**
+     * 从 .pak 文件中提取所有文件（支持递归解压嵌套压缩包）
+     *
+     * ZIP/PAK 中的普通文件直接引用压缩包条目，不会写入临时目录；7z 中的文件仍需解压到临时目录
      * 
      * 如果压缩包中包含 .pak、.zip、.7z 或 .rar 文件，会递归解压它们
-     * 这样可以处理诸如 "zip里套pak" 这样的嵌套情况
+     * 这样可以处理诸如 "zip里套pak" 这样的嵌套情况。嵌套压缩包不会先写到磁盘再重新打开：
+     * 以 STORED 方式保存在外层ZIP中的直接按区间打开，其中的文件同样直接引用外层压缩包；
+     * 其余较小的读取到内存中打开，其中的文件直接引用内存中的数据，只有超过 [IN_MEMORY_ARCHIVE_LIMIT] 的才写到临时目录
      * 
      * 返回的映射包含文件来源信息，可以追踪嵌套链
      * 
@@ -47,14 +114,14 @@ object PakManager {
         tempDir.createDirectories()
         val archiveName = pakPath.fileName.toString()
         val fileTreeMap = hashMapOf<String, PathFileTree>()
-        val archiveNames = mutableListOf(archiveName)
+        val data = ArchiveData.FileRegion(pakPath, 0, pakPath.fileSize())
         when {
             archiveName.endsWith(".7z") -> {
-                extract7zRecursive(pakPath, tempDir, fileTreeMap, archiveNames)
+                extract7zRecursive(data, tempDir, fileTreeMap, listOf(archiveName))
             }
 
             Strings.CI.endsWithAny(archiveName, ".zip", ".pak") -> {
-                extractZipRecursive(pakPath, tempDir, fileTreeMap, archiveNames)
+                extractZipRecursive(data, tempDir, fileTreeMap, listOf(archiveName))
             }
 
             else -> {
@@ -66,127 +133,244 @@ object PakManager {
 
     /**
      * 递归解压ZIP格式压缩包
-     * 
-     * @param archivePath 压缩包路径
+     *
+     * 普通文件不会被写入临时目录，而是直接引用压缩包中的条目（见 [ArchiveEntrySource]），
+     * 压缩包可以在磁盘上、外层压缩包中的一段区间或者内存中，只有不支持直接读取的条目才会被解压到磁盘，
+     * 这些条目先由 [extractEntriesParallel] 并行解压，再按条目顺序加入文件树
+     *
+     * @param data 压缩包数据
      * @param outputDir   输出目录
      * @param fileTreeMap 文件树映射表
-     * @param archiveNames 当前压缩包名称（用于构建来源链）
+     * @param archiveNames 来源链，同一层的文件共享，不能修改
      */
     private fun extractZipRecursive(
-        archivePath: Path,
+        data: ArchiveData,
         outputDir: Path,
         fileTreeMap: MutableMap<String, PathFileTree>,
-        archiveNames: MutableList<String>
+        archiveNames: List<String>
     ) {
-        ZipFile.builder()
-            .setPath(archivePath)
-            .setCharset(StandardCharsets.UTF_8)
-            .get()
-            .use { zipFile ->
-                val digest = MessageDigest.getInstance("SHA-256")
-                zipFile.entries.asSequence()
-                    .filterNot { it.isDirectory }
-                    .forEach { entry ->
-                        val entryName = entry.name
-                        val fileName = getEntryFileName(entryName)
-                        val outputPath = outputDir.resolve(entryName)
-                        outputPath.parent?.createDirectories()
-                        // 解压文件
-                        when (entry.size) {
-                            0L -> outputPath.createFile()
-                            else -> zipFile.getInputStream(entry).use { zin ->
-                                DigestInputStream(zin, digest).use { din -> Files.copy(din, outputPath) }
-                            }
+        openZip(data).use { zipFile ->
+            val extracted = extractEntriesParallel(data, zipFile, outputDir)
+            zipFile.entries.asSequence()
+                .filterNot { it.isDirectory }
+                .forEach { entry ->
+                    val entryName = entry.name
+                    val fileName = getEntryFileName(entryName)
+                    when {
+                        // 嵌套压缩包，尽量不经过磁盘直接打开
+                        isArchiveFile(fileName) -> {
+                            val nestedData = openNestedZipEntry(data, zipFile, entry, outputDir)
+                            handleNestedArchive(fileName, nestedData, outputDir, fileTreeMap, archiveNames)
+                        }
+                        // 直接引用压缩包中的条目，读取时再按需解压
+                        ArchiveEntrySource.isSupported(entry) -> {
+                            val entrySource = data.entrySource(entry)
+                            addFileToTree(
+                                PathFileTree(fileName, entryName, archiveNames, entrySource = entrySource),
+                                fileTreeMap
+                            )
                         }
-                        val hash = bytesToHex(digest.digest())
-                        // 处理嵌套压缩包
-                        if (isArchiveFile(fileName)) {
-                            handleNestedArchive(fileName, outputPath, outputDir, fileTreeMap, archiveNames)
-                        } else {
-                            addFileToTree(fileName, entryName, archiveNames, hash, outputPath, fileTreeMap)
+
+                        else -> {
+                            val (outputPath, hash) = extracted[entry] ?: extractZipEntry(zipFile, entry, outputDir)
+                            val fileTree = PathFileTree(fileName, entryName, archiveNames, hash, outputPath)
+                            if (entry.crc >= 0) {
+                                fileTree.archiveCrc = entry.crc
+                            }
+                            addFileToTree(fileTree, fileTreeMap)
                         }
                     }
+                }
+        }
+    }
+
+    private fun openZip(data: ArchiveData): ZipFile {
+        val channel = data.openChannel()
+        try {
+            return ZipFile.builder()
+                .setSeekableByteChannel(channel)
+                .setCharset(StandardCharsets.UTF_8)
+                .get()
+        } catch (e: Exception) {
+            channel.close()
+            throw e
+        }
+    }
+
+    /**
+     * 是否需要把条目解压到磁盘：既不是嵌套压缩包，压缩方式也不支持直接读取（例如 BZIP2、LZMA）
+     */
+    private fun needsExtraction(entry: ZipArchiveEntry): Boolean {
+        return !entry.isDirectory && !isArchiveFile(getEntryFileName(entry.name)) && !ArchiveEntrySource.isSupported(entry)
+    }
+
+    /**
+     * 并行解压需要写到磁盘的条目，同时计算hash
+     *
+     * [ZipFile] 不能在多个线程中同时读取，条目按在压缩包中的物理顺序（本地文件头偏移量）
+     * 切分成压缩后大小相近的几段，每段由一个任务打开独立的 [ZipFile] 实例连续读取。
+     * 各段通过并行流执行，在MOD提取线程池中调用时使用该线程池，段数不超过该线程池的并行度。
+     * 需要解压的条目少于两个或者只有一个线程可用时返回空，由调用方逐个解压
+     *
+     * @return 条目（[zipFile] 中的实例） -> 解压后的文件路径与文件hash
+     */
+    private fun extractEntriesParallel(
+        data: ArchiveData,
+        zipFile: ZipFile,
+        outputDir: Path
+    ): Map<ZipArchiveEntry, Pair<Path, String>> {
+        // 先按中央目录的顺序统计，绝大多数压缩包没有需要解压的条目，不需要再按物理顺序排序
+        val pendingCount = zipFile.entries.asSequence().count { needsExtraction(it) }
+        val workers = min(pendingCount, ForkJoinTask.getPool()?.parallelism ?: Runtime.getRuntime().availableProcessors())
+        if (workers <= 1) {
+            return emptyMap()
+        }
+        val physicalEntries = zipFile.entriesInPhysicalOrder.toList()
+        val pending = physicalEntries.indices.filter { needsExtraction(physicalEntries[it]) }
+        // 按压缩后大小切分成连续的几段
+        val targetBytes = pending.sumOf { physicalEntries[it].compressedSize.coerceAtLeast(0) } / workers + 1
+        val ranges = ArrayList<List<Int>>(workers)
+        var range = ArrayList<Int>()
+        var rangeBytes = 0L
+        for (index in pending) {
+            range.add(index)
+            rangeBytes += physicalEntries[index].compressedSize.coerceAtLeast(0)
+            if (rangeBytes >= targetBytes && ranges.size < workers - 1) {
+                ranges.add(range)
+                range = ArrayList()
+                rangeBytes = 0
+            }
+        }
+        if (range.isNotEmpty()) {
+            ranges.add(range)
+        }
+        val results = arrayOfNulls<Pair<Path, String>>(physicalEntries.size)
+        ranges.parallelStream().forEach { indexes ->
+            openZip(data).use { worker ->
+                // 同一个压缩包的物理顺序在每个实例中都相同
+                val workerEntries = worker.entriesInPhysicalOrder.toList()
+                for (index in indexes) {
+                    results[index] = extractZipEntry(worker, workerEntries[index], outputDir)
+                }
             }
+        }
+        val extracted = IdentityHashMap<ZipArchiveEntry, Pair<Path, String>>(pending.size)
+        for (index in pending) {
+            extracted[physicalEntries[index]] = results[index]!!
+        }
+        return extracted
+    }
+
+    /**
+     * 定位ZIP中的嵌套压缩包
+     *
+     * 外层压缩包在磁盘上且条目以 STORED 方式保存时直接使用外层文件中的区间；
+     * 否则不超过 [IN_MEMORY_ARCHIVE_LIMIT] 的读取到内存，更大的解压到输出目录
+     */
+    private fun openNestedZipEntry(
+        data: ArchiveData,
+        zipFile: ZipFile,
+        entry: ZipArchiveEntry,
+        outputDir: Path
+    ): ArchiveData {
+        if (data is ArchiveData.FileRegion && entry.method == ZipMethod.STORED.code &&
+            ArchiveEntrySource.isSupported(entry)
+        ) {
+            val dataOffset = ArchiveEntrySource.of(data.path, entry, data.offset).dataOffset
+            return ArchiveData.FileRegion(data.path, dataOffset, entry.compressedSize)
+        }
+        if (entry.size in 0..IN_MEMORY_ARCHIVE_LIMIT) {
+            return ArchiveData.Memory(data.path, zipFile.getInputStream(entry).use { it.readAllBytes() })
+        }
+        val (outputPath, _) = extractZipEntry(zipFile, entry, outputDir)
+        return ArchiveData.FileRegion(outputPath, 0, outputPath.fileSize())
+    }
+
+    /**
+     * 将ZIP中的单个条目解压到输出目录
+     *
+     * @return 解压后的文件路径与文件hash
+     */
+    private fun extractZipEntry(zipFile: ZipFile, entry: ZipArchiveEntry, outputDir: Path): Pair<Path, String> {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val outputPath = outputDir.resolve(entry.name)
+        outputPath.parent?.createDirectories()
+        when (entry.size) {
+            0L -> outputPath.createFile()
+            else -> zipFile.getInputStream(entry).use { zin ->
+                DigestInputStream(zin, digest).use { din -> Files.copy(din, outputPath) }
+            }
+        }
+        return Pair(outputPath, bytesToHex(digest.digest()))
     }
 
     /**
      * 递归解压 7Z 格式压缩包（支持嵌套）
      *
      * 当遇到 .pak、.zip、.7z 或 .rar 文件时，会递归解压，并记录来源链
-     * @param archivePath 压缩包路径
+     * 固实压缩的数据块由 [SevenZExtractor] 并行解压，不超过 [IN_MEMORY_ARCHIVE_LIMIT] 的嵌套压缩包保留在内存中
+     * @param data 压缩包数据
      * @param outputDir   输出目录
      * @param fileTreeMap 文件映射表，包含来源信息
-     * @param archiveNames 当前压缩包名称（用于构建来源链）
+     * @param archiveNames 来源链，同一层的文件共享，不能修改
      */
     private fun extract7zRecursive(
-        archivePath: Path,
+        data: ArchiveData,
         outputDir: Path,
         fileTreeMap: MutableMap<String, PathFileTree>,
-        archiveNames: MutableList<String>
+        archiveNames: List<String>
     ) {
-        SevenZFile.builder()
-            .setPath(archivePath)
-            .setCharset(StandardCharsets.UTF_8)
-            .get()
-            .use { sevenZFile ->
-                val digest = MessageDigest.getInstance("SHA-256")
-                generateSequence { sevenZFile.nextEntry }
-                    .filterNot { it.isDirectory }
-                    .forEach { entry ->
-                        val entryName = entry.name
-                        val fileName = getEntryFileName(entryName)
-                        val outputPath = outputDir.resolve(entryName)
-                        outputPath.parent?.createDirectories()
-
-                        // 写入文件内容
-                        when (entry.size) {
-                            0L -> Files.createFile(outputPath)
-                            else -> Files.newOutputStream(outputPath).use { output ->
-                                DigestOutputStream(output, digest).use { dos ->
-                                    val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
-                                    while (sevenZFile.read(buffer) != -1) {
-                                        //写入文件内容，顺便计算哈希
-                                        dos.write(buffer, 0, buffer.size)
-                                    }
-                                }
-                            }
-                        }
-
-                        val hash = bytesToHex(digest.digest())
-
-                        // 处理嵌套压缩包
-                        if (isArchiveFile(fileName)) {
-                            handleNestedArchive(fileName, outputPath, outputDir, fileTreeMap, archiveNames)
-                        } else {
-                            addFileToTree(fileName, entryName, archiveNames, hash, outputPath, fileTreeMap)
-                        }
-                    }
+        val keepInMemory = { entry: SevenZArchiveEntry ->
+            isArchiveFile(getEntryFileName(entry.name)) && entry.size <= IN_MEMORY_ARCHIVE_LIMIT
+        }
+        // 按数据块并行解压，解压完成的文件在当前线程中按顺序处理
+        SevenZExtractor.extract(archiveNames.last(), data::openChannel, outputDir, keepInMemory) { extracted ->
+            val entry = extracted.entry
+            val entryName = entry.name
+            val fileName = getEntryFileName(entryName)
+            val outputPath = extracted.outputPath
+            // 处理嵌套压缩包
+            if (isArchiveFile(fileName)) {
+                val nestedData = when {
+                    extracted.data != null -> ArchiveData.Memory(data.path, extracted.data)
+                    else -> ArchiveData.FileRegion(outputPath!!, 0, outputPath.fileSize())
+                }
+                handleNestedArchive(fileName, nestedData, outputDir, fileTreeMap, archiveNames)
+            } else {
+                val fileTree = PathFileTree(fileName, entryName, archiveNames, extracted.hash, outputPath)
+                if (entry.hasCrc) {
+                    fileTree.archiveCrc = entry.crcValue
+                }
+                addFileToTree(fileTree, fileTreeMap)
             }
+        }
     }
 
     /**
      * 处理嵌套压缩包
+     *
+     * 嵌套压缩包中的文件使用各自的来源链（外层来源链 + 嵌套压缩包名称），不影响外层的其他文件。
+     * 只有需要解压到磁盘的文件才会写入嵌套临时目录
      */
     private fun handleNestedArchive(
         fileName: String,
-        outputPath: Path,
+        data: ArchiveData,
         outputDir: Path,
         fileTreeMap: MutableMap<String, PathFileTree>,
-        archiveNames: MutableList<String>
+        archiveNames: List<String>
     ) {
         val sanitizedFileName = fileName.replace("[^a-zA-Z0-9._-]".toRegex(), "_")
         val nestedTempDir = outputDir.resolve(
             "_nested_${System.currentTimeMillis()}_${NESTED_COUNTER.getAndIncrement()}_$sanitizedFileName"
         )
-        nestedTempDir.createDirectories()
-        archiveNames.add(fileName)
+        val nestedArchiveNames = archiveNames + fileName
         when {
             fileName.endsWith(".7z") -> {
-                extract7zRecursive(outputPath, nestedTempDir, fileTreeMap, archiveNames)
+                extract7zRecursive(data, nestedTempDir, fileTreeMap, nestedArchiveNames)
             }
 
             Strings.CI.endsWithAny(fileName, ".zip", ".pak") -> {
-                extractZipRecursive(outputPath, nestedTempDir, fileTreeMap, archiveNames)
+                extractZipRecursive(data, nestedTempDir, fileTreeMap, nestedArchiveNames)
             }
 
             else -> {
@@ -198,16 +382,8 @@ object PakManager {
     /**
      * 将文件添加到文件树映射中
      */
-    private fun addFileToTree(
-        fileName: String,
-        entryName: String,
-        archiveNames: MutableList<String>,
-        hash: String,
-        outputPath: Path,
-        fileTreeMap: MutableMap<String, PathFileTree>
-    ) {
-        val current = PathFileTree(fileName, entryName, archiveNames, hash, outputPath)
-
+    private fun addFileToTree(current: PathFileTree, fileTreeMap: MutableMap<String, PathFileTree>) {
+        val entryName = current.fileEntryName
         fileTreeMap[entryName]?.let { existing ->
             ColorPrinter.warning(
                 t(
@@ -236,14 +412,16 @@ object PakManager {
 
     /**
      * 将合并后的文件打包成 .pak 文件
-     * 
-     * @param sourceDir 源目录（包含所有要打包的文件）
+     *
+     * @param sourceDir 源目录（包含所有经过合并改写的文件）
+     * @param passthroughFiles 原样输出的文件（相对路径 -> 来源），直接从来源读取，不需要先拷贝到源目录，也不会重新压缩
      * @param pakPath   输出 pak 文件路径
      */
-    fun createPak(sourceDir: Path, pakPath: Path) {
+    fun createPak(sourceDir: Path, passthroughFiles: Map<String, PathFileTree>, pakPath: Path) {
         Files.createDirectories(pakPath.parent)
 
         ZipArchiveOutputStream(pakPath.toFile()).use { zipOut ->
+            val writtenEntries = HashSet<String>()
             Files.walk(sourceDir).use { pathStream ->
                 pathStream
                     .filter { it.isRegularFile() }
@@ -259,24 +437,98 @@ object PakManager {
                                 Files.copy(file, zipOut)
                                 zipOut.closeArchiveEntry()
                             }
+                            writtenEntries.add(entryName)
                         } catch (e: IOException) {
                             throw RuntimeException(t("PAK_MANAGER_FAILED_TO_ADD_FILE", file), e)
                         }
                     }
             }
+            for ((entryName, fileTree) in passthroughFiles) {
+                // 合并目录中已经存在的文件优先
+                if (!writtenEntries.add(entryName)) {
+                    continue
+                }
+                try {
+                    addPassthroughEntry(zipOut, entryName, fileTree)
+                } catch (e: IOException) {
+                    throw RuntimeException(t("PAK_MANAGER_FAILED_TO_ADD_FILE", entryName), e)
+                }
+            }
+        }
+    }
+
+    /**
+     * 将原样输出的文件写入 pak
+     *
+     * 来源是压缩包条目时，直接拷贝已压缩的原始数据（raw copy），不再解压后重新压缩；
+     * 其他来源（已解压到磁盘的文件）按普通方式压缩写入
+     *
+     * @param zipOut 输出流
+     * @param entryName 输出的条目名称
+     * @param fileTree 文件来源
+     */
+    private fun addPassthroughEntry(zipOut: ZipArchiveOutputStream, entryName: String, fileTree: PathFileTree) {
+        val source = fileTree.entrySource
+        if (source != null) {
+            val entry = ZipArchiveEntry(entryName).apply {
+                method = source.method
+                crc = source.crc
+                size = source.size
+                compressedSize = source.compressedSize
+            }
+            source.openRawStream().use { zipOut.addRawArchiveEntry(entry, it) }
+        } else {
+            zipOut.putArchiveEntry(ZipArchiveEntry(entryName))
+            fileTree.openInputStream().use { it.transferTo(zipOut) }
+            zipOut.closeArchiveEntry()
         }
     }
 
     /**
      * 判断两个文件在内容上是否相同
-     * 
+     *
+     * 优先使用压缩包目录中已有的大小与CRC-32判断，不需要解压文件；
+     * 只有缺少CRC或者要求校验时，才会计算SHA-256
+     *
      * @param file1 第一个文件
      * @param file2 第二个文件
+     * @param verifyHash CRC相同时是否再用SHA-256确认
      * @return 两个文件内容是否相同
      * @throws IOException 如果文件不可读
      */
-    fun areFilesIdentical(file1: PathFileTree, file2: PathFileTree): Boolean {
-        return Files.size(file1.safeGetFullPathName()) == Files.size(file2.safeGetFullPathName())
-                && file1.fileHash == file2.fileHash
+    fun areFilesIdentical(file1: PathFileTree, file2: PathFileTree, verifyHash: Boolean = false): Boolean {
+        if (file1.getSize() != file2.getSize()) {
+            return false
+        }
+        val crc1 = file1.getCrc()
+        val crc2 = file2.getCrc()
+        if (crc1 != null && crc2 != null) {
+            if (crc1 != crc2) {
+                return false //CRC不同，内容一定不同
+            }
+            if (!verifyHash) {
+                return true
+            }
+        }
+        return file1.getOrComputeHash() == file2.getOrComputeHash()
+    }
+
+    /**
+     * 去除内容相同的文件，每种内容只保留最后一次出现的版本，保持原有顺序
+     *
+     * 例如加载顺序 [A, B, A′]（A与A′相同）去重后为 [B, A′]，最后一个文件仍然是加载顺序中最后的MOD
+     *
+     * @param fileSources 同一路径下来自不同MOD的文件
+     * @param verifyHash CRC相同时是否再用SHA-256确认
+     */
+    fun deduplicate(fileSources: List<PathFileTree>, verifyHash: Boolean = false): MutableList<PathFileTree> {
+        val distinctSources = ArrayList<PathFileTree>(fileSources.size)
+        for (source in fileSources.asReversed()) {
+            if (distinctSources.none { areFilesIdentical(it, source, verifyHash) }) {
+                distinctSources.add(source)
+            }
+        }
+        distinctSources.reverse()
+        return distinctSources
     }
 }
@@ -0,0 +1,301 @@
+package ankol.mod.merger.tools
+
+import ankol.mod.merger.tools.Tools.bytesToHex
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry
+import org.apache.commons.compress.archivers.sevenz.SevenZFile
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.channels.SeekableByteChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.Future
+import kotlin.io.path.createDirectories
+import kotlin.io.path.createFile
+import kotlin.math.min
+
+/**
+ * 7z 解压引擎
+ *
+ * 固实压缩的 7z 把多个文件压缩在同一个数据块（folder）中，块内的文件只能从块的开头顺序解码，
+ * 不同的块之间互相独立。解压时按数据块分组，多个工作线程各自打开一个 [SevenZFile] 实例，
+ * 依次领取还没有解压的块，块内的文件仍按顺序读取，不会重复解码。
+ *
+ * 当前线程同样领取并解压数据块，解压完成的文件按块的顺序交给调用方处理，其余的块由辅助线程同时解压。
+ * 只有一个数据块、只有一个CPU核心，或者无法获取数据块信息时，在当前线程顺序解压。
+ * 在 [java.util.concurrent.ForkJoinPool] 中调用时（MOD提取线程池），辅助任务提交到该线程池，数量不超过线程池中空闲的线程数，
+ * 当前线程只等待已经开始解压的块，不会因为等待排队中的任务占用线程池。
+ * 压缩包通过通道读取，可以是磁盘上的文件，也可以是外层压缩包中的一段区间或者内存中的数据。
+ *
+ * @author Ankol
+ */
+object SevenZExtractor {
+    private val log = logger()
+
+    /**
+     * 解压出来的文件
+     *
+     * @param entry 压缩包中的条目
+     * @param outputPath 解压后的文件路径，保留在内存中的文件为null
+     * @param hash 文件内容的SHA-256
+     * @param data 保留在内存中的文件内容，写到磁盘上的文件为null
+     */
+    class ExtractedEntry(val entry: SevenZArchiveEntry, val outputPath: Path?, val hash: String, val data: ByteArray?)
+
+    /**
+     * 数据块
+     *
+     * @param index 数据块索引，没有内容的文件（空文件）为-1
+     */
+    private class Block(val index: Int) {
+        /**
+         * 块中文件的条目索引，按在块中的顺序排列
+         */
+        val entryIndexes = ArrayList<Int>()
+    }
+
+    /**
+     * 解压 7z 压缩包中的所有文件（不包括目录）
+     *
+     * @param archiveName 压缩包名称，仅用于日志
+     * @param openChannel 打开压缩包的通道，并行解压时每个工作线程各调用一次
+     * @param outputDir 输出目录
+     * @param keepInMemory 判断文件是否保留在内存中而不写到磁盘（例如较小的嵌套压缩包）
+     * @param consumer 处理解压出来的文件，在当前线程中按数据块的顺序调用
+     */
+    fun extract(
+        archiveName: String,
+        openChannel: () -> SeekableByteChannel,
+        outputDir: Path,
+        keepInMemory: (SevenZArchiveEntry) -> Boolean,
+        consumer: (ExtractedEntry) -> Unit
+    ) {
+        val task = Task(archiveName, openChannel, outputDir, keepInMemory)
+        open(task).use { sevenZFile ->
+            val entries = sevenZFile.entries.toList()
+            val blocks = planBlocks(sevenZFile, entries)
+            // 在MOD提取线程池中执行时，辅助任务也使用该线程池，不额外创建线程
+            val pool = ForkJoinTask.getPool()
+            val helpers = min(blocks.count { it.index >= 0 } - 1, idleThreads(pool))
+            if (helpers <= 0) {
+                for (block in blocks) {
+                    extractBlock(sevenZFile, entries, task, block).forEach(consumer)
+                }
+                return
+            }
+            extractParallel(sevenZFile, entries, task, blocks, helpers, pool, consumer)
+        }
+    }
+
+    /**
+     * 可以用于辅助解压的线程数：线程池中空闲的线程数（其他MOD正在提取时可能为0），不在线程池中时为CPU核心数减去当前线程
+     */
+    private fun idleThreads(pool: ForkJoinPool?): Int {
+        if (pool == null) {
+            return Runtime.getRuntime().availableProcessors() - 1
+        }
+        return pool.parallelism - pool.activeThreadCount
+    }
+
+    /**
+     * 一次解压的参数
+     */
+    private class Task(
+        val archiveName: String,
+        val openChannel: () -> SeekableByteChannel,
+        val outputDir: Path,
+        val keepInMemory: (SevenZArchiveEntry) -> Boolean
+    )
+
+    /**
+     * 当前线程与 [helpers] 个辅助线程一起领取并解压数据块，当前线程按块的顺序把结果交给 [consumer]
+     */
+    private fun extractParallel(
+        sevenZFile: SevenZFile,
+        entries: List<SevenZArchiveEntry>,
+        task: Task,
+        blocks: List<Block>,
+        helpers: Int,
+        pool: ForkJoinPool?,
+        consumer: (ExtractedEntry) -> Unit
+    ) {
+        val results = List(blocks.size) { CompletableFuture<List<ExtractedEntry>>() }
+        val pending = ConcurrentLinkedQueue(blocks.indices.toList())
+        val executor = pool ?: Executors.newFixedThreadPool(helpers)
+        try {
+            repeat(helpers) {
+                executor.execute {
+                    // 开始执行时块已经全部被领取（例如排队等待的时间较长），不再打开压缩包
+                    if (pending.isEmpty()) {
+                        return@execute
+                    }
+                    try {
+                        open(task).use { helperFile ->
+                            val helperEntries = helperFile.entries.toList()
+                            while (true) {
+                                val i = pending.poll() ?: break
+                                results[i].complete(extractBlock(helperFile, helperEntries, task, blocks[i]))
+                            }
+                        }
+                    } catch (e: Throwable) {
+                        // 出错后当前线程不再领取新的块，还没有完成的块都视为失败
+                        pending.clear()
+                        results.forEach { it.completeExceptionally(e) }
+                    }
+                }
+            }
+            // 当前线程同样领取块进行解压，期间把已经完成的块按顺序交给调用方
+            var next = 0
+            while (true) {
+                while (next < results.size && results[next].isDone) {
+                    await(results[next++]).forEach(consumer)
+                }
+                val i = pending.poll() ?: break
+                try {
+                    results[i].complete(extractBlock(sevenZFile, entries, task, blocks[i]))
+                } catch (e: Throwable) {
+                    pending.clear()
+                    throw e
+                }
+            }
+            // 剩下的块都已经被辅助线程领取，等待它们完成
+            while (next < results.size) {
+                await(results[next++]).forEach(consumer)
+            }
+        } finally {
+            if (pool == null) {
+                executor.shutdownNow()
+            }
+        }
+    }
+
+    private fun open(task: Task): SevenZFile {
+        val channel = task.openChannel()
+        try {
+            return SevenZFile.builder()
+                .setSeekableByteChannel(channel)
+                .setDefaultName(task.archiveName)
+                .setCharset(StandardCharsets.UTF_8)
+                .get()
+        } catch (e: Exception) {
+            channel.close()
+            throw e
+        }
+    }
+
+    private fun <T> await(future: Future<T>): T {
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause as? IOException ?: IOException(e.cause)
+        }
+    }
+
+    /**
+     * 按数据块对文件分组，块的顺序与文件在压缩包中的顺序一致
+     */
+    private fun planBlocks(sevenZFile: SevenZFile, entries: List<SevenZArchiveEntry>): List<Block> {
+        val folderIndexes = folderIndexesOf(sevenZFile)
+        if (folderIndexes == null || folderIndexes.size != entries.size) {
+            // 没有数据块信息，所有文件放在同一组中顺序解压
+            return listOf(Block(0).also { block ->
+                entries.indices.filterNotTo(block.entryIndexes) { entries[it].isDirectory }
+            })
+        }
+        val blocks = LinkedHashMap<Int, Block>()
+        for ((i, entry) in entries.withIndex()) {
+            if (entry.isDirectory) {
+                continue
+            }
+            val folderIndex = if (entry.hasStream()) folderIndexes[i] else -1
+            blocks.getOrPut(folderIndex) { Block(folderIndex) }.entryIndexes.add(i)
+        }
+        return blocks.values.toList()
+    }
+
+    /**
+     * 读取每个文件所在的数据块索引，没有内容的文件为-1
+     *
+     * commons-compress 没有公开这部分信息（条目的 contentMethods 只在解码时才会设置），只能通过反射读取私有字段，
+     * 读取失败时返回null，只能在一个线程中顺序解压。升级 commons-compress 后需要确认 SevenZExtractorTest 仍然通过
+     */
+    fun folderIndexesOf(sevenZFile: SevenZFile): IntArray? {
+        return try {
+            val archive = readField(sevenZFile, "archive")
+            val streamMap = readField(archive, "streamMap")
+            readField(streamMap, "fileFolderIndex") as IntArray
+        } catch (e: Exception) {
+            log.warn("Failed to read 7z folder indexes of '{}', extracting sequentially. Reason: {}", sevenZFile.defaultName, e.toString())
+            null
+        }
+    }
+
+    private fun readField(target: Any, name: String): Any {
+        val field = target.javaClass.getDeclaredField(name)
+        field.isAccessible = true
+        return field.get(target)
+    }
+
+    /**
+     * 解压一个数据块中的所有文件，[SevenZFile] 实例不能同时在多个线程中使用
+     */
+    private fun extractBlock(
+        sevenZFile: SevenZFile,
+        entries: List<SevenZArchiveEntry>,
+        task: Task,
+        block: Block
+    ): List<ExtractedEntry> {
+        val startTime = System.nanoTime()
+        var totalBytes = 0L
+        val result = ArrayList<ExtractedEntry>(block.entryIndexes.size)
+        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+        for (index in block.entryIndexes) {
+            val entry = entries[index]
+            val inMemory = task.keepInMemory(entry)
+            val outputPath = if (inMemory) null else task.outputDir.resolve(entry.name)
+            outputPath?.parent?.createDirectories()
+            val memory = if (inMemory) ByteArrayOutputStream(entry.size.toInt()) else null
+            val digest = MessageDigest.getInstance("SHA-256")
+            if (entry.hasStream()) {
+                sevenZFile.getInputStream(entry).use { input ->
+                    openOutput(outputPath, memory).use { output ->
+                        while (true) {
+                            val read = input.read(buffer)
+                            if (read == -1) {
+                                break
+                            }
+                            //写入文件内容，只对实际读取的字节计算哈希
+                            output.write(buffer, 0, read)
+                            digest.update(buffer, 0, read)
+                            totalBytes += read
+                        }
+                    }
+                }
+            } else {
+                outputPath?.createFile()
+            }
+            result.add(ExtractedEntry(entry, outputPath, bytesToHex(digest.digest()), memory?.toByteArray()))
+        }
+        if (block.index >= 0) {
+            val elapsedNanos = System.nanoTime() - startTime
+            log.info(
+                "7z block {} of '{}': {} files, {} KB in {} ms ({} MB/s).",
+                block.index, task.archiveName, block.entryIndexes.size, totalBytes / 1024,
+                elapsedNanos / 1_000_000, "%.1f".format(totalBytes * 1000.0 / elapsedNanos)
+            )
+        }
+        return result
+    }
+
+    private fun openOutput(outputPath: Path?, memory: ByteArrayOutputStream?): OutputStream {
+        return if (outputPath != null) Files.newOutputStream(outputPath) else memory!!
+    }
+}
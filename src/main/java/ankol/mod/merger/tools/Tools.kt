@@ -1,12 +1,8 @@
 package ankol.mod.merger.tools
 
-import ankol.mod.merger.core.filetrees.PathFileTree
 import ankol.mod.merger.exception.BusinessException
-import org.apache.commons.compress.archivers.zip.ZipFile
 import java.io.IOException
-import java.nio.channels.FileChannel
 import java.nio.file.Path
-import java.nio.file.StandardOpenOption
 import kotlin.io.path.*
 
 object Tools {
@@ -71,11 +67,13 @@ object Tools {
     }
 
     /**
-     * 索引基准MOD，建立一个索引MAP，方便后续进行文件路径修正和对比使用
+     * 索引基准MOD，建立一个索引，方便后续进行文件路径修正和对比使用
+     *
+     * 直接解析内存映射的中央目录，不通过 ZipFile 构建完整的条目对象
      * @param filePath 基准MOD路径
      */
     @JvmStatic
-    fun indexPakFile(filePath: Path): MutableMap<String, PathFileTree> {
+    fun indexPakFile(filePath: Path): PakIndex {
         if (filePath.notExists()) {
             throw BusinessException(Localizations.t("TOOLS_FILE_NOT_EXIST", filePath.absolutePathString()))
         }
@@ -85,32 +83,23 @@ object Tools {
         if (!filePath.fileName.toString().endsWith(".pak")) {
             throw BusinessException(Localizations.t("TOOLS_FILE_MUST_BE_PAK"))
         }
-        val pakIndexMap = HashMap<String, PathFileTree>()
-        try {
-            ZipFile.builder().setPath(filePath).get().use { zipFile ->
-                val entries = zipFile.entries
-                while (entries.hasMoreElements()) {
-                    val zipEntry = entries.nextElement()
-                    val entryName = zipEntry.name
-                    val fileName = getEntryFileName(entryName)
-                    //重复文件的识别
-                    if (fileName in pakIndexMap) {
-                        ColorPrinter.warning(
-                            Localizations.t(
-                                "TOOLS_SAME_FILE_NAME_WARNING",
-                                fileName,
-                                entryName,
-                                pakIndexMap[fileName]?.fullPathName
-                            )
-                        )
-                    }
-                    pakIndexMap[fileName] = PathFileTree(fileName, entryName, mutableListOf(filePath.fileName.toString()))
-                }
-            }
+        val pakIndex = try {
+            CentralDirectoryReader.read(filePath)
         } catch (e: IOException) {
             throw RuntimeException(e)
         }
-        return pakIndexMap
+        //重复文件的识别
+        for ((shadowed, current) in pakIndex.shadowedEntries) {
+            ColorPrinter.warning(
+                Localizations.t(
+                    "TOOLS_SAME_FILE_NAME_WARNING",
+                    pakIndex.fileNames[current],
+                    pakIndex.entryName(current),
+                    pakIndex.entryName(shadowed)
+                )
+            )
+        }
+        return pakIndex
     }
 
     @JvmStatic
@@ -135,28 +124,6 @@ object Tools {
         path.deleteIfExists()
     }
 
-    /**
-     * 拷贝文件，使用零拷贝方式提高效率
-     * @param sourcePath 源文件路径
-     * @param targetPath 目标文件路径
-     * @param createParentDirs 是否自动创建父目录，默认为 true
-     */
-    fun zeroCopy(sourcePath: Path, targetPath: Path, createParentDirs: Boolean = true) {
-        if (createParentDirs) {
-            targetPath.parent?.createDirectories()
-        }
-        FileChannel.open(sourcePath).use { sourceChannel ->
-            FileChannel.open(targetPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE).use { targetChannel ->
-                var position = 0L
-                val size = sourceChannel.size()
-                while (position < size) {
-                    // transferTo 可能无法一次传输所有数据，需要循环处理
-                    position += sourceChannel.transferTo(position, size - position, targetChannel)
-                }
-            }
-        }
-    }
-
     /**
      * 格式化字符串，将 {} 占位符替换为参数值
      * @param template 模板字符串，如 "Hello {} World {}"
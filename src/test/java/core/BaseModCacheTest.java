@@ -0,0 +1,72 @@
+package core;
+
+import ankol.mod.merger.core.BaseModCache;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import tool.MergeTestTool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 基准MOD缓存清理测试
+ */
+public class BaseModCacheTest {
+    private Path workDir;
+    private Path cacheRoot;
+    private Path baseModPath;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("base-mod-cache-test");
+        cacheRoot = workDir.resolve("cache");
+        baseModPath = workDir.resolve("data0.pak");
+        try (OutputStream output = Files.newOutputStream(baseModPath); ZipOutputStream zip = new ZipOutputStream(output)) {
+            zip.putNextEntry(new ZipEntry("scripts/player/player_main.scr"));
+            zip.write("Param(\"Health\", 100);".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        MergeTestTool.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testKeepsRecentlyUsedCaches() throws IOException {
+        // 其他游戏版本的缓存：保留最近使用的，只删除最久没有使用的
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= 3; i++) {
+            Path dir = Files.createDirectories(cacheRoot.resolve("other" + i));
+            Files.setLastModifiedTime(dir, FileTime.fromMillis(now - i * 60_000L));
+        }
+        new BaseModCache(baseModPath, cacheRoot);
+
+        List<String> names;
+        try (Stream<Path> dirs = Files.list(cacheRoot)) {
+            names = dirs.map(it -> it.getFileName().toString()).sorted().toList();
+        }
+        assertEquals(3, names.size());
+        assertTrue(names.contains("other1"));
+        assertTrue(names.contains("other2"));
+        assertFalse(names.contains("other3"));
+
+        // 再次打开同一个基准MOD，缓存仍然保留
+        new BaseModCache(baseModPath, cacheRoot);
+        try (Stream<Path> dirs = Files.list(cacheRoot)) {
+            assertEquals(3, dirs.count());
+        }
+    }
+}
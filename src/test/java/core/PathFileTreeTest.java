@@ -0,0 +1,65 @@
+package core;
+
+import ankol.mod.merger.core.filetrees.ArchiveEntrySource;
+import ankol.mod.merger.core.filetrees.PathFileTree;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 直接指向压缩包条目的文件读取测试
+ */
+public class PathFileTreeTest {
+    private static final String ENTRY_NAME = "scripts/player/player_main.scr";
+
+    @Test
+    public void testReadValidEntry() throws IOException {
+        PathFileTree fileTree = archiveEntryTree("Param(\"Name\", \"弓\");".getBytes(StandardCharsets.UTF_8));
+        assertEquals("Param(\"Name\", \"弓\");", fileTree.getContent());
+        assertEquals("Param(\"Name\", \"弓\");", fileTree.openCharStream().toString());
+        fileTree.preload();
+        assertEquals("Param(\"Name\", \"弓\");", fileTree.getContent());
+        assertEquals("Param(\"Name\", \"弓\");", fileTree.openCharStream().toString());
+    }
+
+    @Test
+    public void testInvalidUtf8EntryIsReported() throws IOException {
+        // GBK编码的内容不是合法的UTF-8，读取内容与解析时都需要报错（合并失败时使用MOD原本的文件），不能替换为替代字符后继续合并
+        PathFileTree fileTree = archiveEntryTree("Param(\"Name\", \"弓\");".getBytes("GBK"));
+        assertThrows(CharacterCodingException.class, fileTree::getContent);
+        assertThrows(CharacterCodingException.class, fileTree::openCharStream);
+        fileTree.preload();
+        assertThrows(CharacterCodingException.class, fileTree::getContent);
+        assertThrows(CharacterCodingException.class, fileTree::openCharStream);
+    }
+
+    /**
+     * 创建只包含一个条目的内存压缩包，返回直接指向该条目的文件树
+     */
+    private static PathFileTree archiveEntryTree(byte[] content) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(output)) {
+            zip.putNextEntry(new ZipEntry(ENTRY_NAME));
+            zip.write(content);
+            zip.closeEntry();
+        }
+        byte[] archive = output.toByteArray();
+        try (ZipFile zipFile = ZipFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(archive)).get()) {
+            ZipArchiveEntry entry = zipFile.getEntry(ENTRY_NAME);
+            ArchiveEntrySource source = ArchiveEntrySource.Companion.of(Path.of("mod.pak"), entry, 0, archive);
+            return new PathFileTree("player_main.scr", ENTRY_NAME, List.of("mod.pak"), null, null, source);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package json;
+
+import ankol.mod.merger.core.BaseModManager;
+import ankol.mod.merger.merger.json.TechlandJsonFileMerger;
+import ankol.mod.merger.tools.Localizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import tool.MergeTestTool;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * JSON多路合并测试，结果与逐个合并对比
+ */
+public class JsonMergeAllTest {
+    private static final String ENTRY_NAME = "ui/hud.gui";
+
+    private final TechlandJsonFileMerger merger = new TechlandJsonFileMerger();
+    private Path workDir;
+    private BaseModManager baseModManager;
+    private String original;
+
+    @BeforeClass
+    public static void initLocalizations() {
+        Localizations.INSTANCE.init();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("json-merge-test");
+        original = MergeTestTool.readResource("merge/json/original.gui");
+        baseModManager = MergeTestTool.createBaseModManager(workDir, ENTRY_NAME, original);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        baseModManager.close();
+        MergeTestTool.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testMergeAllMatchesSequentialFold() {
+        // mod1：修改、新增对象、删除原版的键（与原版的对比保留）；mod2：修改未被改动的值、在mod1新增的对象中新增、删除原版的键；
+        // mod3：与mod1修改同一个值（冲突，选择mod3）、修改数组元素、在mod1新增的对象中的另一个位置新增
+        List<String> mods = List.of(
+                MergeTestTool.readResource("merge/json/mod1.gui"),
+                MergeTestTool.readResource("merge/json/mod2.gui"),
+                MergeTestTool.readResource("merge/json/mod3.gui")
+        );
+        String expected = MergeTestTool.foldMerge(merger, baseModManager, ENTRY_NAME, original, mods);
+        String merged = MergeTestTool.mergeAll(merger, baseModManager, ENTRY_NAME, original, mods);
+
+        assertEquals("多路合并的结果应该与逐个合并一致", expected, merged);
+        assertTrue(merged.contains("\"version\": 5"));
+        assertTrue(merged.contains("\"left\": 5"));
+        assertFalse(merged.contains("\"visible\""));
+        assertTrue(merged.contains("\"alpha\": 0.8"));
+        int style = merged.indexOf("\"style\"");
+        assertTrue(style > 0);
+        assertTrue(merged.indexOf("\"weight\": \"bold\"", style) > style);
+        assertTrue(merged.indexOf("\"outline\": true", style) > style);
+    }
+}
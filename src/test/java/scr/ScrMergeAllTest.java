@@ -0,0 +1,115 @@
+package scr;
+
+import ankol.mod.merger.constants.UserChoice;
+import ankol.mod.merger.core.BaseModManager;
+import ankol.mod.merger.merger.scr.TechlandScrFileMerger;
+import ankol.mod.merger.tools.Localizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import tool.MergeTestTool;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * SCR多路合并测试，结果与旧的逐个合并（每一步重新解析合并结果）对比
+ */
+public class ScrMergeAllTest {
+    private static final String ENTRY_NAME = "scripts/player/player_main.scr";
+
+    private final TechlandScrFileMerger merger = new TechlandScrFileMerger();
+    private Path workDir;
+    private BaseModManager baseModManager;
+    private String original;
+
+    @BeforeClass
+    public static void initLocalizations() {
+        Localizations.INSTANCE.init();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("scr-merge-test");
+        original = MergeTestTool.readResource("merge/scr/original.scr");
+        baseModManager = MergeTestTool.createBaseModManager(workDir, ENTRY_NAME, original);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        baseModManager.close();
+        MergeTestTool.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testMergeAllMatchesSequentialFold() {
+        // mod1：修改、新增import与新的函数块、缺少原版的一行；mod2：在mod1新增的函数块中新增、修改未被改动的行、新增sub；
+        // mod3：与mod1修改同一行（冲突，选择mod3）、在mod1新增的函数块中继续新增
+        List<String> mods = List.of(
+                MergeTestTool.readResource("merge/scr/mod1.scr"),
+                MergeTestTool.readResource("merge/scr/mod2.scr"),
+                MergeTestTool.readResource("merge/scr/mod3.scr")
+        );
+        String expected = MergeTestTool.foldMerge(merger, baseModManager, ENTRY_NAME, original, mods);
+        String merged = MergeTestTool.mergeAll(merger, baseModManager, ENTRY_NAME, original, mods);
+
+        assertEquals("多路合并的结果应该与逐个合并一致", expected, merged);
+        assertTrue(merged.contains("Param(\"Health\", 200);"));
+        assertTrue(merged.contains("Param(\"Stamina\", 75);"));
+        assertTrue(merged.contains("Param(\"Speed\", 1.0);"));
+        assertTrue(merged.contains("Param(\"Durability\", 300);"));
+        assertTrue(merged.contains("Param(\"Damage\", 55);"));
+        assertTrue(merged.contains("import \"scripts/mod1/bow_defines.scr\""));
+        assertTrue(merged.contains("Param(\"Bleeding\", 2.5);"));
+        assertTrue(merged.contains("sub mod2_init()"));
+        // mod2、mod3 在mod1新增的函数块中新增的内容
+        int bow = merged.indexOf("Item(\"Weapon_Bow\", \"Ranged\")");
+        assertTrue(bow > 0);
+        assertTrue(merged.indexOf("Param(\"Weight\", 1.5);", bow) > bow);
+        assertTrue(merged.indexOf("Param(\"Range\", 40);", bow) > merged.indexOf("Param(\"Weight\", 1.5);", bow));
+    }
+
+    @Test
+    public void testWhitespaceInsideStringLiteral() throws Exception {
+        // 只修改字符串中的空白：参数不同，函数块不能因为内容哈希相同被当作未修改而跳过
+        String original = "sub main()\n{\n    Item(\"Weapon_Bow\")\n    {\n        Param(\"Name\", \"Long Bow\");\n        Param(\"Damage\", 10);\n    }\n}\n";
+        String mod = original.replace("\"Long Bow\"", "\"LongBow\"");
+        Path dir = workDir.resolve("whitespace");
+        Files.createDirectories(dir);
+        BaseModManager manager = MergeTestTool.createBaseModManager(dir, ENTRY_NAME, original);
+        try {
+            String merged = MergeTestTool.mergeAll(merger, manager, ENTRY_NAME, original, List.of(mod));
+            assertTrue(merged.contains("Param(\"Name\", \"LongBow\");"));
+            assertFalse(merged.contains("Long Bow"));
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testSameConflictInDifferentContainers() throws Exception {
+        // 两个函数块中完全相同的冲突：冲突标识不同，各自使用自己的选择
+        String original = "sub main()\n{\n"
+                + "    Item(\"Weapon_Bow\")\n    {\n        Param(\"Damage\", 10);\n        Param(\"Weight\", 1);\n    }\n"
+                + "    Item(\"Weapon_Axe\")\n    {\n        Param(\"Damage\", 10);\n        Param(\"Weight\", 1);\n    }\n"
+                + "}\n";
+        List<String> mods = List.of(original.replace("10", "20"), original.replace("10", "30"));
+        Path dir = workDir.resolve("containers");
+        Files.createDirectories(dir);
+        BaseModManager manager = MergeTestTool.createBaseModManager(dir, ENTRY_NAME, original);
+        try {
+            String merged = MergeTestTool.mergeAll(merger, manager, ENTRY_NAME, original, mods, record ->
+                    record.getBaseNode().getParent().getSignature().contains("Weapon_Bow") ? UserChoice.BASE_MOD : UserChoice.MERGE_MOD);
+            int axe = merged.indexOf("Item(\"Weapon_Axe\")");
+            assertTrue(axe > 0);
+            assertTrue(merged.substring(0, axe).contains("Param(\"Damage\", 20);"));
+            assertTrue(merged.substring(axe).contains("Param(\"Damage\", 30);"));
+        } finally {
+            manager.close();
+        }
+    }
+}
@@ -2,10 +2,20 @@ package scr;
 
 import ankol.mod.merger.antlr.scr.TechlandScriptLexer;
 import ankol.mod.merger.antlr.scr.TechlandScriptParser;
+import ankol.mod.merger.core.BaseTreeNode;
+import ankol.mod.merger.merger.scr.TechlandScrFileVisitor;
+import ankol.mod.merger.merger.scr.node.ScrContainerScriptNode;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import static org.junit.Assert.*;
 
 public class ScrParseTest {
@@ -160,6 +170,90 @@ public class ScrParseTest {
         System.out.println("✓ 方法引用调用解析正确");
     }
 
+    @Test
+    public void testRepeatedSignatureKeys() throws IOException {
+        // 重复签名的编号：与旧版本逐个扫描子节点key（startsWith + 全是数字）生成的结果逐个对比，
+        // 覆盖重复的函数调用、变量、函数块、sub、if/else if，以及编号与参数相同、后缀为空的签名
+        String code;
+        try (InputStream stream = getClass().getClassLoader().getResourceAsStream("scr/repeated_signatures.scr")) {
+            assertNotNull(stream);
+            code = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        TechlandScriptParser parser = createParser(code);
+        TechlandScriptParser.FileContext fileCtx = parser.file();
+        TechlandScrFileVisitor visitor = new TechlandScrFileVisitor(parser.getTokenStream());
+        ScrContainerScriptNode root = (ScrContainerScriptNode) visitor.visitFile(fileCtx);
+
+        List<String> keys = new ArrayList<>();
+        collectKeys(root, "", keys);
+        List<String> expected = List.of(
+                "import:\"scripts/a.scr\"",
+                "directive:define:",
+                "directive:include::\"b.scr\"",
+                "sub:Init:0",
+                "sub:Init:0 > funCall:Param:\"Health\"",
+                "sub:Init:0 > funCall:Param:\"Health\":0",
+                "sub:Init:0 > funCall:Param:\"Stamina\"",
+                "sub:Init:0 > funCall:Param:1",
+                "sub:Init:0 > funCall:Param:1:0",
+                "sub:Init:0 > funCall:Set:0",
+                "sub:Init:0 > funCall:Set:1",
+                "sub:Init:0 > funCall:Set:2",
+                "sub:Init:0 > funCall:Set:1:0",
+                "sub:Init:0 > funCall:Set:3",
+                "sub:Init:0 > funCall:Set:\"x\"",
+                "sub:Init:0 > funCall:Set:\"x\":0",
+                "sub:Init:0 > funCall:Set:\"x\":1",
+                "sub:Init:0 > variable:float:Speed:0",
+                "sub:Init:0 > variable:float:Speed:1",
+                "sub:Init:0 > variable:float:Speed:2",
+                "sub:Init:0 > funBlock:Item:0",
+                "sub:Init:0 > funBlock:Item:0 > funCall:Param",
+                "sub:Init:0 > funBlock:Item:1:0",
+                "sub:Init:0 > funBlock:Item:1:0 > funCall:Param",
+                "sub:Init:0 > funBlock:Item:1:1",
+                "sub:Init:0 > funBlock:Item:1:1 > funCall:Call",
+                "sub:Init:0 > funBlock:Item:1",
+                "sub:Init:0 > funBlock:Item:1 > funCall:Call:0",
+                "sub:Init:0 > funBlock:Item:1 > funCall:Call:1",
+                "sub:Init:0 > funBlock:Item:2",
+                "sub:Init:0 > funBlock:Item:2 > funCall:Call",
+                "sub:Init:0 > if:0",
+                "sub:Init:0 > if:0 > funCall:Call",
+                "sub:Init:0 > if:0 > elseif:0",
+                "sub:Init:0 > if:0 > elseif:0 > funCall:Call",
+                "sub:Init:0 > if:0 > elseif:1",
+                "sub:Init:0 > if:0 > elseif:1 > funCall:Call",
+                "sub:Init:0 > if:0 > elseif:2",
+                "sub:Init:0 > if:0 > elseif:2 > funCall:Call",
+                "sub:Init:0 > if:0 > else",
+                "sub:Init:0 > if:0 > else > funCall:Call",
+                "sub:Init:0 > if:1",
+                "sub:Init:0 > if:1 > funCall:Call",
+                "sub:Init:0 > if:2",
+                "sub:Init:0 > if:2 > funCall:Call",
+                "sub:Init:0 > if:2 > elseif:0",
+                "sub:Init:0 > if:2 > elseif:0 > funCall:Call",
+                "sub:Init:1",
+                "sub:Init:1 > use:Default",
+                "sub:Other",
+                "sub:Other > funCall:Param:\"Health\"",
+                "sub:Other > funCall:Param:\"Health\":0"
+        );
+        assertEquals(expected, keys);
+    }
+
+    private void collectKeys(ScrContainerScriptNode container, String path, List<String> keys) {
+        for (Map.Entry<String, BaseTreeNode> entry : container.getChildrens().entrySet()) {
+            String key = entry.getKey();
+            assertEquals("子节点的签名应该与key一致", key, entry.getValue().getSignature());
+            keys.add(path + key);
+            if (entry.getValue() instanceof ScrContainerScriptNode child) {
+                collectKeys(child, path + key + " > ", keys);
+            }
+        }
+    }
+
     private TechlandScriptParser createParser(String code) {
         var charStream = CharStreams.fromString(code);
         var lexer = new TechlandScriptLexer(charStream);
@@ -0,0 +1,140 @@
+package tool;
+
+import ankol.mod.merger.constants.UserChoice;
+import ankol.mod.merger.core.AbstractFileMerger;
+import ankol.mod.merger.core.BaseModManager;
+import ankol.mod.merger.core.MergerContext;
+import ankol.mod.merger.core.filetrees.AbstractFileTree;
+import ankol.mod.merger.core.filetrees.MemoryFileTree;
+import ankol.mod.merger.merger.ConflictRecord;
+import ankol.mod.merger.merger.MergeResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 合并器测试工具：准备只包含一个原版文件的 data0.pak，分别用多路合并与旧的逐个合并得到结果
+ * <p>
+ * 需要用户选择的冲突默认选择后一个MOD的版本（与引擎一样先延后，带着选择重新合并），测试过程中不会读取控制台输入
+ */
+public abstract class MergeTestTool {
+
+    /**
+     * 读取测试资源文件
+     */
+    public static String readResource(String name) {
+        try (InputStream stream = MergeTestTool.class.getClassLoader().getResourceAsStream(name)) {
+            if (stream == null) {
+                throw new IllegalArgumentException("Resource not found: " + name);
+            }
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 在工作目录中创建只包含 {@code entryName} 一个文件的 data0.pak，并加载为基准MOD
+     */
+    public static BaseModManager createBaseModManager(Path workDir, String entryName, String content) throws IOException {
+        Path pakPath = workDir.resolve("data0.pak");
+        try (OutputStream output = Files.newOutputStream(pakPath); ZipOutputStream zip = new ZipOutputStream(output)) {
+            zip.putNextEntry(new ZipEntry(entryName));
+            zip.write(content.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+        Path tempDir = workDir.resolve("temp");
+        Files.createDirectories(tempDir);
+        return new BaseModManager(tempDir, pakPath);
+    }
+
+    /**
+     * 删除工作目录
+     */
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * 多路合并：以原版文件为基准，一次合并所有MOD
+     */
+    public static String mergeAll(AbstractFileMerger merger, BaseModManager baseModManager, String entryName,
+                                  String original, List<String> mods) {
+        return mergeAll(merger, baseModManager, entryName, original, mods, record -> UserChoice.MERGE_MOD);
+    }
+
+    /**
+     * 多路合并，需要用户选择的冲突由 {@code answer} 给出选择
+     */
+    public static String mergeAll(AbstractFileMerger merger, BaseModManager baseModManager, String entryName,
+                                  String original, List<String> mods, Function<ConflictRecord, UserChoice> answer) {
+        List<AbstractFileTree> modTrees = new ArrayList<>();
+        for (int i = 0; i < mods.size(); i++) {
+            modTrees.add(fileTree(entryName, "mod" + (i + 1) + ".pak", mods.get(i)));
+        }
+        return mergeAnswering(merger, baseModManager, fileTree(entryName, "data0.pak", original), modTrees, true, answer);
+    }
+
+    /**
+     * 旧的逐个合并：每次只合并一个MOD，合并结果作为文本重新解析后成为下一次合并的基准
+     */
+    public static String foldMerge(AbstractFileMerger merger, BaseModManager baseModManager, String entryName,
+                                   String original, List<String> mods) {
+        String merged = original;
+        String previousName = "data0.pak";
+        for (int i = 0; i < mods.size(); i++) {
+            String modName = "mod" + (i + 1) + ".pak";
+            AbstractFileTree base = fileTree(entryName, previousName, merged);
+            merged = mergeAnswering(merger, baseModManager, base, List.of(fileTree(entryName, modName, mods.get(i))), i == 0,
+                    record -> UserChoice.MERGE_MOD);
+            previousName = modName;
+        }
+        return merged;
+    }
+
+    private static String mergeAnswering(AbstractFileMerger merger, BaseModManager baseModManager, AbstractFileTree base,
+                                         List<AbstractFileTree> mods, boolean baseIsOriginal,
+                                         Function<ConflictRecord, UserChoice> answer) {
+        Map<String, UserChoice> choices = new HashMap<>();
+        while (true) {
+            MergerContext context = new MergerContext();
+            context.setBaseModManager(baseModManager);
+            context.setFileName(base.getFileEntryName());
+            context.setFirstModMergeWithBaseMod(baseIsOriginal);
+            context.setDeferConflicts(true);
+            context.setRecordedChoices(new HashMap<>(choices));
+            MergeResult result = merger.mergeAll(base, mods, context);
+            if (!result.getDeferred()) {
+                return result.getMergedContent();
+            }
+            for (ConflictRecord record : context.getPendingConflicts()) {
+                choices.put(record.choiceKey(), answer.apply(record));
+            }
+        }
+    }
+
+    private static AbstractFileTree fileTree(String entryName, String archiveName, String content) {
+        String fileName = entryName.substring(entryName.lastIndexOf('/') + 1);
+        return new MemoryFileTree(fileName, entryName, List.of(archiveName), content);
+    }
+}
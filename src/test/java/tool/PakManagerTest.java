@@ -0,0 +1,50 @@
+package tool;
+
+import ankol.mod.merger.core.filetrees.PathFileTree;
+import ankol.mod.merger.tools.PakManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 同一路径下多个MOD文件的去重测试
+ */
+public class PakManagerTest {
+    private Path workDir;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("pak-manager-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        MergeTestTool.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testDeduplicateKeepsLastOccurrence() throws IOException {
+        // 加载顺序 [A, B, A′]，A与A′内容相同：保留A′，合并顺序为 B -> A′，最后一个仍是加载顺序中最后的MOD
+        List<PathFileTree> sources = List.of(
+                modFile("a.pak", "Param(\"Damage\", 10);"),
+                modFile("b.pak", "Param(\"Damage\", 20);"),
+                modFile("c.pak", "Param(\"Damage\", 10);")
+        );
+        List<PathFileTree> distinct = PakManager.INSTANCE.deduplicate(sources, true);
+        assertEquals(List.of("b.pak", "c.pak"), distinct.stream().map(PathFileTree::getFirstArchiveFileName).toList());
+    }
+
+    private PathFileTree modFile(String archiveName, String content) throws IOException {
+        Path path = workDir.resolve(archiveName).resolve("player_main.scr");
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+        return new PathFileTree("player_main.scr", "scripts/player/player_main.scr", List.of(archiveName), null, path, null);
+    }
+}
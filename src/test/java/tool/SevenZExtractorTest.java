@@ -0,0 +1,115 @@
+package tool;
+
+import ankol.mod.merger.tools.SevenZExtractor;
+import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
+import org.apache.commons.compress.archivers.sevenz.SevenZFile;
+import org.apache.commons.compress.archivers.sevenz.SevenZOutputFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * 7z 解压测试
+ */
+public class SevenZExtractorTest {
+    private static final Map<String, String> FILES = new TreeMap<>(Map.of(
+            "scripts/a.scr", "Param(\"A\", 1);",
+            "scripts/b.scr", "Param(\"B\", 2);",
+            "scripts/skills.xml", "<skills><skill id=\"C\"/></skills>"
+    ));
+
+    private Path workDir;
+    private byte[] archive;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("sevenz-test");
+        // SevenZOutputFile 把每个有内容的文件写到单独的数据块中
+        SeekableInMemoryByteChannel channel = new SeekableInMemoryByteChannel();
+        try (SevenZOutputFile output = new SevenZOutputFile(channel)) {
+            SevenZArchiveEntry directory = new SevenZArchiveEntry();
+            directory.setName("scripts");
+            directory.setDirectory(true);
+            output.putArchiveEntry(directory);
+            output.closeArchiveEntry();
+            for (Map.Entry<String, String> file : FILES.entrySet()) {
+                SevenZArchiveEntry entry = new SevenZArchiveEntry();
+                entry.setName(file.getKey());
+                output.putArchiveEntry(entry);
+                output.write(file.getValue().getBytes(StandardCharsets.UTF_8));
+                output.closeArchiveEntry();
+            }
+            SevenZArchiveEntry empty = new SevenZArchiveEntry();
+            empty.setName("scripts/empty.scr");
+            output.putArchiveEntry(empty);
+            output.closeArchiveEntry();
+            output.finish();
+            archive = Arrays.copyOf(channel.array(), (int) channel.size());
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        MergeTestTool.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testFolderIndexes() throws IOException {
+        // 数据块索引通过反射读取 commons-compress 的私有字段，字段被改名或删除时这里会失败，而不是悄悄退回单线程解压
+        try (SevenZFile sevenZFile = SevenZFile.builder().setSeekableByteChannel(new SeekableInMemoryByteChannel(archive)).get()) {
+            int[] folderIndexes = SevenZExtractor.INSTANCE.folderIndexesOf(sevenZFile);
+            assertNotNull(folderIndexes);
+            assertArrayEquals(new int[]{-1, 0, 1, 2, -1}, folderIndexes);
+        }
+    }
+
+    @Test
+    public void testExtractAllBlocksInOrder() throws IOException {
+        assertExtracted(extract(workDir), workDir);
+    }
+
+    @Test
+    public void testExtractInForkJoinPool() throws Exception {
+        // 在MOD提取线程池中：辅助任务使用空闲的线程，当前线程同样解压，结果仍按块的顺序交给调用方
+        for (int parallelism : new int[]{1, 2, 4}) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                Path outputDir = workDir.resolve("pool-" + parallelism);
+                assertExtracted(pool.submit(() -> extract(outputDir)).get(), outputDir);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private List<String> extract(Path outputDir) throws IOException {
+        List<String> names = new ArrayList<>();
+        SevenZExtractor.INSTANCE.extract("test.7z", () -> new SeekableInMemoryByteChannel(archive), outputDir, entry -> false, extracted -> {
+            names.add(extracted.getEntry().getName());
+            return kotlin.Unit.INSTANCE;
+        });
+        return names;
+    }
+
+    private void assertExtracted(List<String> names, Path outputDir) throws IOException {
+        assertEquals(List.of("scripts/a.scr", "scripts/b.scr", "scripts/skills.xml", "scripts/empty.scr"), names);
+        for (Map.Entry<String, String> file : FILES.entrySet()) {
+            assertEquals(file.getValue(), Files.readString(outputDir.resolve(file.getKey())));
+        }
+        assertEquals(0, Files.size(outputDir.resolve("scripts/empty.scr")));
+    }
+}
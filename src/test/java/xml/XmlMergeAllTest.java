@@ -0,0 +1,88 @@
+package xml;
+
+import ankol.mod.merger.core.BaseModManager;
+import ankol.mod.merger.merger.xml.TechlandXmlFileMerger;
+import ankol.mod.merger.tools.Localizations;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import tool.MergeTestTool;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * XML多路合并测试，结果与逐个合并对比
+ */
+public class XmlMergeAllTest {
+    private static final String ENTRY_NAME = "scripts/skills/skills.xml";
+
+    private final TechlandXmlFileMerger merger = new TechlandXmlFileMerger();
+    private Path workDir;
+    private BaseModManager baseModManager;
+    private String original;
+
+    @BeforeClass
+    public static void initLocalizations() {
+        Localizations.INSTANCE.init();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("xml-merge-test");
+        original = MergeTestTool.readResource("merge/xml/original.xml");
+        baseModManager = MergeTestTool.createBaseModManager(workDir, ENTRY_NAME, original);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        baseModManager.close();
+        MergeTestTool.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testMergeAllMatchesSequentialFold() {
+        // mod1：修改、新增元素、删除原版元素（与原版的对比保留）；mod2：修改未被改动的元素、在mod1新增的元素中新增、删除原版元素；
+        // mod3：与mod1修改同一元素（冲突，选择mod3）、在mod1新增的元素中的另一个位置新增、新增元素，与原版相同的元素不会恢复被删除的内容
+        List<String> mods = List.of(
+                MergeTestTool.readResource("merge/xml/mod1.xml"),
+                MergeTestTool.readResource("merge/xml/mod2.xml"),
+                MergeTestTool.readResource("merge/xml/mod3.xml")
+        );
+        String expected = MergeTestTool.foldMerge(merger, baseModManager, ENTRY_NAME, original, mods);
+        String merged = MergeTestTool.mergeAll(merger, baseModManager, ENTRY_NAME, original, mods);
+
+        assertEquals("多路合并的结果应该与逐个合并一致", expected, merged);
+        assertTrue(merged.contains("<prop name=\"Stamina\" value=\"35\"/>"));
+        assertTrue(merged.contains("<prop name=\"Range\" value=\"45\"/>"));
+        assertFalse(merged.contains("<prop name=\"Duration\" value=\"1\"/>"));
+        assertTrue(merged.contains("<skill id=\"Roll\" tree=\"Agility\">"));
+        int wallrun = merged.indexOf("<skill id=\"Wallrun\" tree=\"Agility\">");
+        assertTrue(wallrun > 0);
+        assertTrue(merged.indexOf("<prop name=\"Damage\" value=\"15\"/>", wallrun) > wallrun);
+        assertTrue(merged.indexOf("<prop name=\"Cost\" value=\"2\"/>", wallrun) > wallrun);
+    }
+
+    @Test
+    public void testSiblingsAddedAfterSameAnchorKeepModOrder() {
+        // 不同MOD在同一个元素之后新增的兄弟元素按MOD顺序排列（逐个合并时后合并的MOD排在前面）
+        String mod3 = MergeTestTool.readResource("merge/xml/mod1.xml").replace(
+                "<prop name=\"Duration\" value=\"3\"/>",
+                "<prop name=\"Duration\" value=\"3\"/>\n        <prop name=\"Cost\" value=\"2\"/>");
+        List<String> mods = List.of(
+                MergeTestTool.readResource("merge/xml/mod1.xml"),
+                MergeTestTool.readResource("merge/xml/mod2.xml"),
+                mod3
+        );
+        String merged = MergeTestTool.mergeAll(merger, baseModManager, ENTRY_NAME, original, mods);
+
+        int damage = merged.indexOf("<prop name=\"Damage\" value=\"15\"/>");
+        int cost = merged.indexOf("<prop name=\"Cost\" value=\"2\"/>");
+        assertTrue(damage > 0);
+        assertTrue("mod2新增的元素应该排在mod3之前", cost > damage);
+    }
+}